@@ -0,0 +1,54 @@
+package hu.bugadani.serial;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable ByteView of a region of an array.
+ */
+final class ArrayByteView implements ByteView {
+
+    private byte[] mArray = new byte[0];
+    private int mOffset = 0;
+    private int mSize = 0;
+
+    /**
+     * Point the view to a region of an array
+     *
+     * @param array  The array
+     * @param offset The position of the first byte of the view
+     * @param size   The number of bytes in the view
+     * @return Fluent interface
+     */
+    ArrayByteView set(byte[] array, int offset, int size) {
+        mArray = array;
+        mOffset = offset;
+        mSize = size;
+        return this;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public byte peek(int n) {
+        if (n >= mSize) {
+            throw new BufferUnderflowException();
+        }
+        return mArray[mOffset + n];
+    }
+
+    public void copyTo(int offset, byte[] dest, int destOffset, int length) {
+        if (offset < 0 || length < 0 || offset + length > mSize) {
+            throw new BufferUnderflowException();
+        }
+        System.arraycopy(mArray, mOffset + offset, dest, destOffset, length);
+    }
+
+    public void copyTo(int offset, ByteBuffer dest, int length) {
+        if (offset < 0 || length < 0 || offset + length > mSize) {
+            throw new BufferUnderflowException();
+        }
+        dest.put(mArray, mOffset + offset, length);
+    }
+}
@@ -2,11 +2,12 @@ package hu.bugadani.serial;
 
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * A circular byte buffer class
  */
-public class ByteRingBuffer {
+public class ByteRingBuffer implements ByteView {
     enum CopyAlignment {
         Left,
         Right
@@ -16,6 +17,7 @@ public class ByteRingBuffer {
     private int mHead;
     private int mTail;
     private int mSize;
+    private long mReadPosition = 0;
 
     public ByteRingBuffer(int cap) {
         setCapacity(cap);
@@ -37,7 +39,10 @@ public class ByteRingBuffer {
             mSize = 0;
         } else {
             copyBufferContents(array, CopyAlignment.Right);
-            mSize = Math.min(mSize, capacity);
+            if (mSize > capacity) {
+                mReadPosition += mSize - capacity;
+                mSize = capacity;
+            }
         }
         mTail = 0;
         mHead = mSize;
@@ -74,13 +79,19 @@ public class ByteRingBuffer {
         }
     }
 
+    /**
+     * @param i An index in range 0..2 * capacity - 1
+     * @return The index wrapped into the array
+     */
     private int wrap(int i) {
-        return i % mArray.length;
+        int length = mArray.length;
+        return i >= length ? i - length : i;
     }
 
     private void stepTail(int i) {
         mTail = wrap(mTail + i);
         mSize -= i;
+        mReadPosition += i;
     }
 
     private void stepHead(int i) {
@@ -95,6 +106,16 @@ public class ByteRingBuffer {
         return mArray.length;
     }
 
+    /**
+     * The read position changes every time bytes are removed, so it can be used to detect that the first byte
+     * of the buffer is a different one than before.
+     *
+     * @return The number of bytes removed from the buffer since it was created
+     */
+    public long getReadPosition() {
+        return mReadPosition;
+    }
+
     /**
      * @return The current number of bytes in the buffer
      */
@@ -123,6 +144,12 @@ public class ByteRingBuffer {
         return mSize == mArray.length;
     }
 
+    private void onOverflow() {
+        if (ParserEvents.INSTANCE.isEnabled()) {
+            ParserEvents.INSTANCE.bufferFull(mArray.length);
+        }
+    }
+
     /**
      * Add a byte to the buffer's end.
      *
@@ -131,6 +158,7 @@ public class ByteRingBuffer {
      */
     public void add(byte b) throws BufferOverflowException {
         if (isFull()) {
+            onOverflow();
             throw new BufferOverflowException();
         }
         mArray[mHead] = b;
@@ -154,11 +182,24 @@ public class ByteRingBuffer {
      * @throws BufferOverflowException
      */
     public void add(byte[] list, int length) {
-        if (length > list.length) {
-            throw new IllegalArgumentException("length > list.length");
+        add(list, 0, length);
+    }
+
+    /**
+     * Add a number of bytes to the buffer's end.
+     *
+     * @param list   The bytes to add
+     * @param offset The position of the first byte to add
+     * @param length The number of bytes to add
+     * @throws BufferOverflowException
+     */
+    public void add(byte[] list, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > list.length) {
+            throw new IllegalArgumentException("offset + length > list.length");
         } else if (length == 1) {
-            add(list[0]);
+            add(list[offset]);
         } else if (length > getSpace()) {
+            onOverflow();
             throw new BufferOverflowException();
         } else {
             // For efficiency, the bytes are copied in blocks
@@ -172,7 +213,7 @@ public class ByteRingBuffer {
                 int blockLen = Math.min(getSpace(), distToEnd);
                 int copyLen = Math.min(blockLen, bytesRemaining);
 
-                System.arraycopy(list, ptr, mArray, mHead, copyLen);
+                System.arraycopy(list, offset + ptr, mArray, mHead, copyLen);
                 stepHead(copyLen);
                 ptr += copyLen;
             }
@@ -209,6 +250,19 @@ public class ByteRingBuffer {
         return bytes;
     }
 
+    /**
+     * Remove a number of bytes from the buffer without returning them.
+     *
+     * @param n The number of bytes to remove
+     * @throws BufferUnderflowException
+     */
+    public void skip(int n) throws BufferUnderflowException {
+        if (n < 0 || n > mSize) {
+            throw new BufferUnderflowException();
+        }
+        stepTail(n);
+    }
+
     /**
      * Remove all bytes from the buffer.
      *
@@ -260,6 +314,53 @@ public class ByteRingBuffer {
         return bytes;
     }
 
+    /**
+     * Copy a number of bytes into an existing array without removing them from the buffer.
+     *
+     * @param offset     The position of the first byte to copy, where 0 is the current byte
+     * @param dest       The destination array
+     * @param destOffset The position in the destination array
+     * @param length     The number of bytes to copy
+     * @throws BufferUnderflowException
+     */
+    public void copyTo(int offset, byte[] dest, int destOffset, int length) throws BufferUnderflowException {
+        if (offset < 0 || length < 0 || offset + length > mSize) {
+            throw new BufferUnderflowException();
+        }
+
+        int start = wrap(mTail + offset);
+        int distToEnd = mArray.length - start;
+        if (length > distToEnd) {
+            System.arraycopy(mArray, start, dest, destOffset, distToEnd);
+            System.arraycopy(mArray, 0, dest, destOffset + distToEnd, length - distToEnd);
+        } else {
+            System.arraycopy(mArray, start, dest, destOffset, length);
+        }
+    }
+
+    /**
+     * Copy a number of bytes into a ByteBuffer without removing them from the buffer.
+     *
+     * @param offset The position of the first byte to copy, where 0 is the current byte
+     * @param dest   The destination buffer, its position is advanced by length
+     * @param length The number of bytes to copy
+     * @throws BufferUnderflowException
+     */
+    public void copyTo(int offset, ByteBuffer dest, int length) throws BufferUnderflowException {
+        if (offset < 0 || length < 0 || offset + length > mSize) {
+            throw new BufferUnderflowException();
+        }
+
+        int start = wrap(mTail + offset);
+        int distToEnd = mArray.length - start;
+        if (length > distToEnd) {
+            dest.put(mArray, start, distToEnd);
+            dest.put(mArray, 0, length - distToEnd);
+        } else {
+            dest.put(mArray, start, length);
+        }
+    }
+
     /**
      * Return a copy of the buffer contents.
      *
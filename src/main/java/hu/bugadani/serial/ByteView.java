@@ -0,0 +1,39 @@
+package hu.bugadani.serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read access to a sequence of bytes without copying them, e.g. the contents of a ByteRingBuffer.
+ */
+public interface ByteView {
+
+    /**
+     * @return The number of bytes in the view
+     */
+    int getSize();
+
+    /**
+     * @param n The position of the byte, must be less than getSize()
+     * @return The byte at position n
+     */
+    byte peek(int n);
+
+    /**
+     * Copy a number of bytes into an array.
+     *
+     * @param offset     The position of the first byte to copy
+     * @param dest       The destination array
+     * @param destOffset The position in the destination array
+     * @param length     The number of bytes to copy
+     */
+    void copyTo(int offset, byte[] dest, int destOffset, int length);
+
+    /**
+     * Copy a number of bytes into a ByteBuffer, e.g. a memory mapped file, at its current position.
+     *
+     * @param offset The position of the first byte to copy
+     * @param dest   The destination buffer, its position is advanced by length
+     * @param length The number of bytes to copy
+     */
+    void copyTo(int offset, ByteBuffer dest, int length);
+}
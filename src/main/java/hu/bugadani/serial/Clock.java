@@ -0,0 +1,21 @@
+package hu.bugadani.serial;
+
+/**
+ * A source of monotonic time, replaceable for testing.
+ */
+public interface Clock {
+
+    /**
+     * A clock backed by System.nanoTime()
+     */
+    Clock SYSTEM = new Clock() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return The current time in nanoseconds. Only differences between values are meaningful.
+     */
+    long nanoTime();
+}
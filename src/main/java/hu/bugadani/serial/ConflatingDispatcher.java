@@ -0,0 +1,240 @@
+package hu.bugadani.serial;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A listener that keeps only the latest frame for every key, so a slow consumer always gets the freshest data
+ * and never falls behind the parser.
+ * <p>
+ * The parser thread overwrites the slot of the frame's key in place. A consumer thread calls drain() to take the
+ * frames that changed since the previous call. Memory use depends on the number of keys, not on the input rate.
+ * <p>
+ * Note: drain should only be called from one thread at a time.
+ */
+public class ConflatingDispatcher implements SerialParser.FrameViewListener, SerialParser.FrameMatchListener {
+
+    /**
+     * Selects the slot of a frame
+     */
+    public interface KeyExtractor {
+        /**
+         * @param frame The matched frame
+         * @return The key of the frame's slot
+         */
+        long getKey(FrameView frame);
+    }
+
+    /**
+     * Receives the latest frames
+     */
+    public interface Consumer {
+        /**
+         * @param key    The key of the slot
+         * @param frame  The definition of the latest frame
+         * @param data   The data of the latest frame. The array is reused, so it must not be stored.
+         * @param length The length of the data
+         */
+        void onLatest(long key, SerialParser.FrameDefinition frame, byte[] data, int length);
+    }
+
+    /**
+     * Uses the frame id as the key
+     */
+    public static final KeyExtractor FRAME_ID = new KeyExtractor() {
+        public long getKey(FrameView frame) {
+            return frame.getFrameId();
+        }
+    };
+
+    private static final class Slot {
+        final long key;
+        SerialParser.FrameDefinition frame;
+        byte[] data = new byte[16];
+        int length;
+        SerialParser.FrameDefinition readFrame;
+        byte[] readData = new byte[16];
+        int readLength;
+        boolean dirty = false;
+
+        Slot(long key) {
+            this.key = key;
+        }
+    }
+
+    private final KeyExtractor mKeyExtractor;
+    private final FrameView mView = new FrameView();
+    private final ArrayByteView mArrayView = new ArrayByteView();
+
+    private Slot[] mSlots = new Slot[16];
+    private int mSlotCount = 0;
+    private final List<Slot> mDirtySlots = new ArrayList<Slot>();
+    private final List<Slot> mDrainedSlots = new ArrayList<Slot>();
+    private long mReceivedCount = 0;
+    private long mConflatedCount = 0;
+
+    /**
+     * Create a dispatcher that keeps the latest frame of every frame id
+     */
+    public ConflatingDispatcher() {
+        this(FRAME_ID);
+    }
+
+    /**
+     * @param keyExtractor Selects the slot of a frame, e.g. by a device address in the data
+     */
+    public ConflatingDispatcher(KeyExtractor keyExtractor) {
+        mKeyExtractor = keyExtractor;
+    }
+
+    public void onFrameMatched(FrameView frame) {
+        long key = mKeyExtractor.getKey(frame);
+        int length = frame.getSize();
+        synchronized (this) {
+            Slot slot = getSlot(key);
+            if (slot.data.length < length) {
+                slot.data = new byte[Math.max(length, slot.data.length * 2)];
+            }
+            frame.copyTo(0, slot.data, 0, length);
+            slot.length = length;
+            slot.frame = frame.getFrameDefinition();
+
+            mReceivedCount++;
+            if (slot.dirty) {
+                mConflatedCount++;
+            } else {
+                slot.dirty = true;
+                mDirtySlots.add(slot);
+            }
+        }
+    }
+
+    public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+        //The views are shared by every parser that reports to this dispatcher, so they are only used under the lock
+        synchronized (this) {
+            onFrameMatched(mView.set(frame, mArrayView.set(data, 0, data.length), 0, data.length));
+        }
+    }
+
+    /**
+     * Pass the latest frame of every slot that changed since the previous call to a consumer.
+     * The consumer is called without holding the lock, so the parser is not blocked by it.
+     *
+     * @param consumer The consumer
+     * @return The number of frames passed to the consumer
+     */
+    public int drain(Consumer consumer) {
+        List<Slot> drained = mDrainedSlots;
+        synchronized (this) {
+            for (int i = 0; i < mDirtySlots.size(); i++) {
+                Slot slot = mDirtySlots.get(i);
+                //Swap the buffers, so the parser can keep writing the slot
+                byte[] data = slot.readData;
+                slot.readFrame = slot.frame;
+                slot.readData = slot.data;
+                slot.readLength = slot.length;
+                slot.data = data;
+                slot.dirty = false;
+                drained.add(slot);
+            }
+            mDirtySlots.clear();
+        }
+
+        try {
+            for (int i = 0; i < drained.size(); i++) {
+                Slot slot = drained.get(i);
+                consumer.onLatest(slot.key, slot.readFrame, slot.readData, slot.readLength);
+            }
+            return drained.size();
+        } finally {
+            drained.clear();
+        }
+    }
+
+    /**
+     * Take the latest frame of a slot if it changed since it was last taken.
+     *
+     * @param key The key of the slot
+     * @return A copy of the frame data or null
+     */
+    public synchronized byte[] take(long key) {
+        Slot slot = findSlot(key);
+        if (slot == null || !slot.dirty) {
+            return null;
+        }
+        slot.dirty = false;
+        mDirtySlots.remove(slot);
+
+        byte[] data = new byte[slot.length];
+        System.arraycopy(slot.data, 0, data, 0, slot.length);
+        return data;
+    }
+
+    /**
+     * @return The number of frames received
+     */
+    public synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return The number of frames that were overwritten before they were drained
+     */
+    public synchronized long getConflatedCount() {
+        return mConflatedCount;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Slot findSlot(long key) {
+        int mask = mSlots.length - 1;
+        for (int i = hash(key) & mask; mSlots[i] != null; i = (i + 1) & mask) {
+            if (mSlots[i].key == key) {
+                return mSlots[i];
+            }
+        }
+        return null;
+    }
+
+    private Slot getSlot(long key) {
+        int mask = mSlots.length - 1;
+        int i = hash(key) & mask;
+        for (; mSlots[i] != null; i = (i + 1) & mask) {
+            if (mSlots[i].key == key) {
+                return mSlots[i];
+            }
+        }
+
+        Slot slot = new Slot(key);
+        if ((mSlotCount + 1) * 2 > mSlots.length) {
+            grow();
+            insert(mSlots, slot);
+        } else {
+            mSlots[i] = slot;
+        }
+        mSlotCount++;
+        return slot;
+    }
+
+    private void grow() {
+        Slot[] slots = new Slot[mSlots.length * 2];
+        for (Slot slot : mSlots) {
+            if (slot != null) {
+                insert(slots, slot);
+            }
+        }
+        mSlots = slots;
+    }
+
+    private static void insert(Slot[] slots, Slot slot) {
+        int mask = slots.length - 1;
+        int i = hash(slot.key) & mask;
+        while (slots[i] != null) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = slot;
+    }
+}
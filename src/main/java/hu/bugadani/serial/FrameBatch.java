@@ -0,0 +1,125 @@
+package hu.bugadani.serial;
+
+import java.util.Arrays;
+
+/**
+ * A compact collection of the frames matched during a single SerialParser.add call.
+ * <p>
+ * The payloads of all frames are stored back to back in one shared array. The payload of frame i
+ * starts at getOffsets()[i] and ends at getOffsets()[i + 1].
+ * <p>
+ * Note: the batch object and its arrays are reused by the parser. The contents are only valid
+ * during the FrameBatchListener call.
+ */
+public final class FrameBatch {
+
+    private int mCount = 0;
+    private int[] mFrameIds;
+    private int[] mOffsets;
+    private byte[] mData;
+
+    FrameBatch(int initialFrames, int initialBytes) {
+        mFrameIds = new int[initialFrames];
+        mOffsets = new int[initialFrames + 1];
+        mData = new byte[initialBytes];
+    }
+
+    /**
+     * @return The number of frames in the batch
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return True if the batch holds no frames
+     */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return The frame ids. Only the first size() elements are valid.
+     */
+    public int[] getFrameIds() {
+        return mFrameIds;
+    }
+
+    /**
+     * @return The payload offsets. Only the first size() + 1 elements are valid.
+     */
+    public int[] getOffsets() {
+        return mOffsets;
+    }
+
+    /**
+     * @return The shared backing array of the payloads
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * @param index The index of the frame in the batch
+     * @return The id of the frame
+     */
+    public int getFrameId(int index) {
+        checkIndex(index);
+        return mFrameIds[index];
+    }
+
+    /**
+     * @param index The index of the frame in the batch
+     * @return The offset of the frame's payload in getData()
+     */
+    public int getOffset(int index) {
+        checkIndex(index);
+        return mOffsets[index];
+    }
+
+    /**
+     * @param index The index of the frame in the batch
+     * @return The length of the frame's payload
+     */
+    public int getLength(int index) {
+        checkIndex(index);
+        return mOffsets[index + 1] - mOffsets[index];
+    }
+
+    /**
+     * @param index The index of the frame in the batch
+     * @return A copy of the frame's payload
+     */
+    public byte[] copyFrame(int index) {
+        checkIndex(index);
+        return Arrays.copyOfRange(mData, mOffsets[index], mOffsets[index + 1]);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Frame index: " + index + ", size: " + mCount);
+        }
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+
+    void add(int frameId, ByteView buffer, int offset, int length) {
+        if (mCount == mFrameIds.length) {
+            mFrameIds = Arrays.copyOf(mFrameIds, mCount * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2 + 1);
+        }
+
+        int start = mOffsets[mCount];
+        int end = start + length;
+        if (end > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(end, mData.length * 2));
+        }
+        buffer.copyTo(offset, mData, start, length);
+
+        mFrameIds[mCount] = frameId;
+        mCount++;
+        mOffsets[mCount] = end;
+    }
+}
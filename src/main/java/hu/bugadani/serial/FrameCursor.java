@@ -0,0 +1,56 @@
+package hu.bugadani.serial;
+
+/**
+ * A reusable position in the output of SerialParser.nextFrame().
+ * <p>
+ * The cursor points at the bytes where the parser holds them, in its buffer or in the array passed to feed().
+ * Nothing is copied.
+ * <p>
+ * Note: the cursor is only valid until the next nextFrame, feed, add or checkTimeout call.
+ */
+public final class FrameCursor {
+
+    private final FrameView mView = new FrameView();
+    final ArrayByteView mArrayView = new ArrayByteView();
+    private long mPosition;
+
+    void set(SerialParser.FrameDefinition frameDefinition, ByteView source, long position, int offset, int length) {
+        mView.set(frameDefinition, source, offset, length);
+        mPosition = position;
+    }
+
+    /**
+     * @return The definition of the frame
+     */
+    public SerialParser.FrameDefinition getFrameDefinition() {
+        return mView.getFrameDefinition();
+    }
+
+    /**
+     * @return The frame ID
+     */
+    public int getFrameId() {
+        return mView.getFrameId();
+    }
+
+    /**
+     * @return The stream position of the frame's first header byte
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return The length of the frame data
+     */
+    public int getLength() {
+        return mView.getSize();
+    }
+
+    /**
+     * @return A view of the frame data
+     */
+    public FrameView getView() {
+        return mView;
+    }
+}
@@ -0,0 +1,81 @@
+package hu.bugadani.serial;
+
+import java.nio.ByteOrder;
+
+/**
+ * Describes a typed field in the data of a frame. Fields are read with a FrameView.
+ */
+public final class FrameField {
+
+    /**
+     * The supported field types
+     */
+    public enum Type {
+        INT8(1),
+        UINT8(1),
+        INT16(2),
+        UINT16(2),
+        INT32(4),
+        UINT32(4),
+        INT64(8),
+        FLOAT32(4),
+        FLOAT64(8);
+
+        private final int mSize;
+
+        Type(int size) {
+            mSize = size;
+        }
+
+        /**
+         * @return The number of bytes the field occupies
+         */
+        public int getSize() {
+            return mSize;
+        }
+    }
+
+    private final String mName;
+    private final int mOffset;
+    private final Type mType;
+    private final ByteOrder mByteOrder;
+
+    FrameField(String name, int offset, Type type, ByteOrder byteOrder) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Field offset must be >= 0");
+        }
+        if (name == null || type == null || byteOrder == null) {
+            throw new IllegalArgumentException("Field name, type and byte order must not be null");
+        }
+        mName = name;
+        mOffset = offset;
+        mType = type;
+        mByteOrder = byteOrder;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return The position of the field in the frame data
+     */
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public ByteOrder getByteOrder() {
+        return mByteOrder;
+    }
+
+    /**
+     * @return The position after the last byte of the field
+     */
+    int getEnd() {
+        return mOffset + mType.getSize();
+    }
+}
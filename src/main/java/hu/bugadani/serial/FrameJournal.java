@@ -0,0 +1,391 @@
+package hu.bugadani.serial;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An append-only store of matched frames in memory mapped segment files.
+ * <p>
+ * Frames are copied from the parser's buffer into the mapped segment without an intermediate stream.
+ * Records of the same frame id are linked, and every INDEX_INTERVAL-th record of a frame id is kept in a
+ * sparse in-memory index, so a time range query of one frame id only reads the records of that id.
+ * <p>
+ * File format (big endian):
+ * <pre>
+ * segment: int magic, int version, int end of the last record, records
+ * record:  int frame id, long timestamp, int length, long position of the next record with the same id, data
+ * </pre>
+ * Positions are global: segment number * segment size + offset in the segment.
+ * <p>
+ * Note: the index relies on non-decreasing timestamps. A timestamp earlier than the last one is stored as the
+ * last one, e.g. when the wall clock is set back.
+ */
+public class FrameJournal implements SerialParser.FrameViewListener, Closeable {
+
+    /**
+     * Receives the records found by a query
+     */
+    public interface RecordVisitor {
+        /**
+         * @param frameId   The frame ID
+         * @param timestamp The timestamp of the record
+         * @param data      The frame data. The array is reused, so it must not be stored.
+         * @param length    The length of the data
+         */
+        void onRecord(int frameId, long timestamp, byte[] data, int length);
+    }
+
+    static final int MAGIC = 0x53504A4E; //"SPJN"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_LENGTH = 12;
+    static final int RECORD_HEADER_LENGTH = 24;
+    static final int INDEX_INTERVAL = 64;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int END_OFFSET = 8;
+    private static final int TIMESTAMP_OFFSET = 4;
+    private static final int LENGTH_OFFSET = 12;
+    private static final int NEXT_OFFSET = 16;
+
+    private static final class IdIndex {
+        final int frameId;
+        long tail = -1;
+        int count = 0;
+        int size = 0;
+        long[] timestamps = new long[8];
+        long[] positions = new long[8];
+
+        IdIndex(int frameId) {
+            this.frameId = frameId;
+        }
+
+        void add(long timestamp, long position) {
+            if (count++ % INDEX_INTERVAL == 0) {
+                if (size == timestamps.length) {
+                    timestamps = Arrays.copyOf(timestamps, size * 2);
+                    positions = Arrays.copyOf(positions, size * 2);
+                }
+                timestamps[size] = timestamp;
+                positions[size] = position;
+                size++;
+            }
+            tail = position;
+        }
+
+        /**
+         * @return The position of the last indexed record before the timestamp, or the first record
+         */
+        long findStart(long timestamp) {
+            int low = 0;
+            int high = size - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (timestamps[mid] < timestamp) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return positions[low];
+        }
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final List<RandomAccessFile> mFiles = new ArrayList<RandomAccessFile>();
+    private final List<MappedByteBuffer> mSegments = new ArrayList<MappedByteBuffer>();
+    //Open-addressed by frame id, so appending a record does not box the id
+    private IdIndex[] mIndex = new IdIndex[16];
+    private int mIndexCount = 0;
+
+    private MappedByteBuffer mCurrent = null;
+    private int mEnd = 0;
+    private long mLastTimestamp = Long.MIN_VALUE;
+    private byte[] mScratch = new byte[256];
+    private long mRecordCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Open a journal with the default segment size
+     *
+     * @param directory The directory of the segment files. Existing segments are opened for appending.
+     * @throws IOException
+     */
+    public FrameJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory   The directory of the segment files. Existing segments are opened for appending.
+     * @param segmentSize The size of a segment file, which limits the size of a record
+     * @throws IOException
+     */
+    public FrameJournal(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Segment size must be > " + (SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH));
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory: " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        try {
+            openSegments();
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        } catch (RuntimeException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    public void onFrameMatched(FrameView frame) {
+        append(frame.getFrameId(), System.currentTimeMillis(), frame);
+    }
+
+    /**
+     * Append a frame to the journal
+     *
+     * @param frameId   The frame ID
+     * @param timestamp The timestamp of the frame, raised to the last appended timestamp if it is earlier
+     * @param data      The frame data
+     */
+    public synchronized void append(int frameId, long timestamp, ByteView data) {
+        if (mClosed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        int length = data.getSize();
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if (recordLength > mSegmentSize - SEGMENT_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Frame does not fit into a segment: " + length);
+        }
+        if (mCurrent == null || mEnd + recordLength > mSegmentSize) {
+            try {
+                addSegment();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create segment", e);
+            }
+        }
+
+        timestamp = Math.max(timestamp, mLastTimestamp);
+
+        MappedByteBuffer segment = mCurrent;
+        int offset = mEnd;
+        segment.putInt(offset, frameId);
+        segment.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+        segment.putInt(offset + LENGTH_OFFSET, length);
+        segment.putLong(offset + NEXT_OFFSET, -1);
+        segment.position(offset + RECORD_HEADER_LENGTH);
+        data.copyTo(0, segment, length);
+
+        long position = (long) (mSegments.size() - 1) * mSegmentSize + offset;
+        indexRecord(frameId, timestamp, position);
+
+        //Commit the record
+        mEnd = offset + recordLength;
+        segment.putInt(END_OFFSET, mEnd);
+    }
+
+    /**
+     * Visit the records of a frame ID in a time range, in the order they were appended
+     *
+     * @param frameId The frame ID
+     * @param from    The first timestamp, inclusive
+     * @param to      The last timestamp, inclusive
+     * @param visitor Called for every record while the journal is locked
+     * @return The number of records visited
+     */
+    public synchronized int query(int frameId, long from, long to, RecordVisitor visitor) {
+        IdIndex index = findIndex(frameId);
+        if (index == null) {
+            return 0;
+        }
+
+        int count = 0;
+        long position = index.findStart(from);
+        while (position != -1) {
+            MappedByteBuffer segment = mSegments.get((int) (position / mSegmentSize));
+            int offset = (int) (position % mSegmentSize);
+            long timestamp = segment.getLong(offset + TIMESTAMP_OFFSET);
+            if (timestamp > to) {
+                break;
+            }
+            if (timestamp >= from) {
+                int length = segment.getInt(offset + LENGTH_OFFSET);
+                if (mScratch.length < length) {
+                    mScratch = new byte[length];
+                }
+                segment.position(offset + RECORD_HEADER_LENGTH);
+                segment.get(mScratch, 0, length);
+                visitor.onRecord(frameId, timestamp, mScratch, length);
+                count++;
+            }
+            position = segment.getLong(offset + NEXT_OFFSET);
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of records in the journal
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return The number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Write the current segment to the storage device
+     */
+    public synchronized void flush() {
+        if (mCurrent != null) {
+            mCurrent.force();
+        }
+    }
+
+    /**
+     * Flush and close the segment files
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        flush();
+        closeFiles();
+    }
+
+    private void closeFiles() throws IOException {
+        IOException failure = null;
+        for (RandomAccessFile file : mFiles) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private File segmentFile(int index) {
+        return new File(mDirectory, String.format("journal-%08d.seg", index));
+    }
+
+    private void openSegments() throws IOException {
+        for (int i = 0; segmentFile(i).isFile(); i++) {
+            MappedByteBuffer segment = map(segmentFile(i));
+            if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) {
+                throw new IOException("Not a journal segment: " + segmentFile(i));
+            }
+            mCurrent = segment;
+            mEnd = segment.getInt(END_OFFSET);
+
+            //Rebuild the index and the links, a record may have been linked before the journal was closed
+            long base = (long) i * mSegmentSize;
+            for (int offset = SEGMENT_HEADER_LENGTH; offset < mEnd; ) {
+                int frameId = segment.getInt(offset);
+                segment.putLong(offset + NEXT_OFFSET, -1);
+                indexRecord(frameId, segment.getLong(offset + TIMESTAMP_OFFSET), base + offset);
+                offset += RECORD_HEADER_LENGTH + segment.getInt(offset + LENGTH_OFFSET);
+            }
+        }
+    }
+
+    private void addSegment() throws IOException {
+        File file = segmentFile(mSegments.size());
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot overwrite segment: " + file);
+        }
+        MappedByteBuffer segment = map(file);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.putInt(END_OFFSET, SEGMENT_HEADER_LENGTH);
+        mCurrent = segment;
+        mEnd = SEGMENT_HEADER_LENGTH;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        mFiles.add(randomAccessFile);
+        if (randomAccessFile.length() == 0) {
+            randomAccessFile.setLength(mSegmentSize);
+        } else if (randomAccessFile.length() != mSegmentSize) {
+            throw new IllegalArgumentException("Segment size mismatch: " + file);
+        }
+        MappedByteBuffer segment = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        mSegments.add(segment);
+        return segment;
+    }
+
+    private void indexRecord(int frameId, long timestamp, long position) {
+        mLastTimestamp = Math.max(mLastTimestamp, timestamp);
+        IdIndex index = findIndex(frameId);
+        if (index == null) {
+            index = addIndex(frameId);
+        } else {
+            //Link the previous record of the frame id to this one
+            MappedByteBuffer segment = mSegments.get((int) (index.tail / mSegmentSize));
+            segment.putLong((int) (index.tail % mSegmentSize) + NEXT_OFFSET, position);
+        }
+        index.add(timestamp, position);
+        mRecordCount++;
+    }
+
+    private static int hash(int frameId) {
+        int h = frameId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private IdIndex findIndex(int frameId) {
+        int mask = mIndex.length - 1;
+        for (int i = hash(frameId) & mask; mIndex[i] != null; i = (i + 1) & mask) {
+            if (mIndex[i].frameId == frameId) {
+                return mIndex[i];
+            }
+        }
+        return null;
+    }
+
+    private IdIndex addIndex(int frameId) {
+        if ((mIndexCount + 1) * 2 > mIndex.length) {
+            IdIndex[] indexes = mIndex;
+            mIndex = new IdIndex[indexes.length * 2];
+            for (IdIndex index : indexes) {
+                if (index != null) {
+                    insert(mIndex, index);
+                }
+            }
+        }
+        IdIndex index = new IdIndex(frameId);
+        insert(mIndex, index);
+        mIndexCount++;
+        return index;
+    }
+
+    private static void insert(IdIndex[] indexes, IdIndex index) {
+        int mask = indexes.length - 1;
+        int i = hash(index.frameId) & mask;
+        while (indexes[i] != null) {
+            i = (i + 1) & mask;
+        }
+        indexes[i] = index;
+    }
+}
@@ -0,0 +1,302 @@
+package hu.bugadani.serial;
+
+import static hu.bugadani.serial.SerialParser.FrameDefinition.MATCHED_MAYBE;
+import static hu.bugadani.serial.SerialParser.FrameDefinition.MATCHED_NO;
+import static hu.bugadani.serial.SerialParser.FrameDefinition.VARIABLE_LENGTH;
+
+/**
+ * Matches one frame definition against the beginning of a buffer.
+ * <p>
+ * A matcher is chosen for the shape of its frame definition when the definition is added to a parser,
+ * so the length and terminator checks are resolved once instead of on every call. Headers of one or two
+ * bytes are compared against constants without a loop.
+ * <p>
+ * Variable length matchers keep their scan state between calls, so the bytes after the header are only
+ * inspected once while a frame is being received, regardless of the length of the terminator.
+ */
+abstract class FrameMatcher {
+
+    /**
+     * Returned by matchHeader if the whole header is present and matches
+     */
+    static final int HEADER_MATCHED = 0;
+
+    final byte[] mHeader;
+    final int mHeaderLength;
+    private final byte mHeader0;
+    private final byte mHeader1;
+
+    FrameMatcher(byte[] header) {
+        mHeader = header.clone();
+        mHeaderLength = header.length;
+        mHeader0 = header.length > 0 ? header[0] : 0;
+        mHeader1 = header.length > 1 ? header[1] : 0;
+    }
+
+    /**
+     * Create the matcher for a frame definition
+     *
+     * @param header     The header bytes
+     * @param dataLength The data length or VARIABLE_LENGTH
+     * @param terminator The terminator bytes, may be empty for fixed length frames
+     * @return The specialized matcher
+     */
+    static FrameMatcher create(byte[] header, int dataLength, byte[] terminator) {
+        if (dataLength == VARIABLE_LENGTH) {
+            return new VariableLength(header, terminator);
+        } else if (terminator.length > 0) {
+            return new FixedLengthTerminated(header, dataLength, terminator);
+        } else {
+            return new FixedLength(header, dataLength);
+        }
+    }
+
+    /**
+     * @param buffer   The bytes to match, must not be empty
+     * @param position The stream position of the first byte, used to resume a previous search,
+     *                 or -1 if the search state should not be kept
+     * @return MATCHED_NO, MATCHED_MAYBE, or the length of the matched frame
+     */
+    abstract int match(ByteView buffer, long position);
+
+    /**
+     * @param position The stream position of the first buffered byte
+     * @return The buffer index where a resumed search continues, or -1 if the matcher has no search state
+     */
+    int getScanIndex(long position) {
+        return -1;
+    }
+
+    /**
+     * @return The internal state of the search, only meaningful if getScanIndex() is not -1
+     */
+    int getScanState() {
+        return 0;
+    }
+
+    /**
+     * @param scanIndex The buffer index where the search continues
+     * @param scanState The internal state of the search
+     * @return Whether resume() accepts the search state
+     */
+    boolean isValidScanState(int scanIndex, int scanState) {
+        return false;
+    }
+
+    /**
+     * Restore the search state saved by getScanIndex() and getScanState()
+     *
+     * @param position  The stream position of the first buffered byte
+     * @param scanIndex The buffer index where the search continues
+     * @param scanState The internal state of the search
+     */
+    void resume(long position, int scanIndex, int scanState) {
+    }
+
+    /**
+     * Compare the beginning of the buffer with the header
+     *
+     * @param buffer The buffer
+     * @param size   The size of the buffer
+     * @return MATCHED_NO if a byte differs, MATCHED_MAYBE if the header is incomplete, otherwise HEADER_MATCHED
+     */
+    final int matchHeader(ByteView buffer, int size) {
+        switch (mHeaderLength) {
+            case 0:
+                return HEADER_MATCHED;
+
+            case 1:
+                if (size == 0) {
+                    return MATCHED_MAYBE;
+                }
+                return buffer.peek(0) == mHeader0 ? HEADER_MATCHED : MATCHED_NO;
+
+            case 2:
+                if (size == 0) {
+                    return MATCHED_MAYBE;
+                }
+                if (buffer.peek(0) != mHeader0) {
+                    return MATCHED_NO;
+                }
+                if (size == 1) {
+                    return MATCHED_MAYBE;
+                }
+                return buffer.peek(1) == mHeader1 ? HEADER_MATCHED : MATCHED_NO;
+
+            default:
+                int length = Math.min(size, mHeaderLength);
+                for (int i = 0; i < length; i++) {
+                    if (buffer.peek(i) != mHeader[i]) {
+                        return MATCHED_NO;
+                    }
+                }
+                return size < mHeaderLength ? MATCHED_MAYBE : HEADER_MATCHED;
+        }
+    }
+
+    private static final class FixedLength extends FrameMatcher {
+        private final int mFrameLength;
+
+        FixedLength(byte[] header, int dataLength) {
+            super(header);
+            mFrameLength = header.length + dataLength;
+        }
+
+        @Override
+        int match(ByteView buffer, long position) {
+            int size = buffer.getSize();
+            int header = matchHeader(buffer, size);
+            if (header != HEADER_MATCHED) {
+                return header;
+            }
+            return size >= mFrameLength ? mFrameLength : MATCHED_MAYBE;
+        }
+    }
+
+    private static final class FixedLengthTerminated extends FrameMatcher {
+        private final int mFrameLength;
+        private final byte[] mTerminator;
+
+        FixedLengthTerminated(byte[] header, int dataLength, byte[] terminator) {
+            super(header);
+            mFrameLength = header.length + dataLength + terminator.length;
+            mTerminator = terminator.clone();
+        }
+
+        @Override
+        int match(ByteView buffer, long position) {
+            int size = buffer.getSize();
+            int header = matchHeader(buffer, size);
+            if (header != HEADER_MATCHED) {
+                return header;
+            }
+            if (size < mFrameLength) {
+                return MATCHED_MAYBE;
+            }
+            byte[] terminator = mTerminator;
+            int start = mFrameLength - terminator.length;
+            for (int i = 0; i < terminator.length; i++) {
+                if (buffer.peek(start + i) != terminator[i]) {
+                    return MATCHED_NO;
+                }
+            }
+            return mFrameLength;
+        }
+    }
+
+    /**
+     * Searches the terminator with the Knuth-Morris-Pratt algorithm. The search is resumed where the
+     * previous call stopped, unless bytes were removed from the buffer in the meantime.
+     */
+    static final class VariableLength extends FrameMatcher {
+        private final byte[] mTerminator;
+
+        /**
+         * mFailure[i] is the length of the longest proper prefix of mTerminator[0..i] that is also its suffix
+         */
+        private final int[] mFailure;
+
+        private long mScanPosition = -1;
+        private int mScanIndex = 0;
+        private int mScanState = 0;
+
+        VariableLength(byte[] header, byte[] terminator) {
+            super(header);
+            mTerminator = terminator.clone();
+            mFailure = createFailureTable(mTerminator);
+        }
+
+        private static int[] createFailureTable(byte[] pattern) {
+            int[] failure = new int[pattern.length];
+            int length = 0;
+            for (int i = 1; i < pattern.length; i++) {
+                while (length > 0 && pattern[i] != pattern[length]) {
+                    length = failure[length - 1];
+                }
+                if (pattern[i] == pattern[length]) {
+                    length++;
+                }
+                failure[i] = length;
+            }
+            return failure;
+        }
+
+        @Override
+        int getScanIndex(long position) {
+            return position >= 0 && position == mScanPosition ? mScanIndex : -1;
+        }
+
+        @Override
+        int getScanState() {
+            return mScanState;
+        }
+
+        @Override
+        boolean isValidScanState(int scanIndex, int scanState) {
+            return scanIndex >= mHeaderLength && scanState >= 0 && scanState < mTerminator.length;
+        }
+
+        @Override
+        void resume(long position, int scanIndex, int scanState) {
+            if (!isValidScanState(scanIndex, scanState)) {
+                throw new IllegalArgumentException("Invalid scan state");
+            }
+            mScanPosition = position;
+            mScanIndex = scanIndex;
+            mScanState = scanState;
+        }
+
+        @Override
+        int match(ByteView buffer, long position) {
+            int size = buffer.getSize();
+            int header = matchHeader(buffer, size);
+            if (header != HEADER_MATCHED) {
+                return header;
+            }
+
+            if (position < 0 || position != mScanPosition) {
+                //The buffer starts with a different frame, restart the search
+                mScanPosition = position;
+                mScanIndex = mHeaderLength;
+                mScanState = 0;
+            }
+
+            int result = scan(buffer, mScanIndex, mScanState);
+            if (result >= 0) {
+                mScanPosition = -1;
+                return result;
+            }
+            mScanIndex = size;
+            mScanState = -result - 1;
+            return MATCHED_MAYBE;
+        }
+
+        /**
+         * Search the terminator in the bytes after the header
+         *
+         * @param buffer The buffer
+         * @param from   The index of the first byte to inspect
+         * @param state  The number of terminator bytes matched right before from
+         * @return The index after the terminator, or -(state + 1) with the number of terminator bytes
+         * matched at the end of the buffer if the terminator was not found
+         */
+        int scan(ByteView buffer, int from, int state) {
+            byte[] terminator = mTerminator;
+            int[] failure = mFailure;
+            int size = buffer.getSize();
+            for (int index = from; index < size; index++) {
+                byte b = buffer.peek(index);
+                while (state > 0 && terminator[state] != b) {
+                    state = failure[state - 1];
+                }
+                if (terminator[state] == b) {
+                    state++;
+                    if (state == terminator.length) {
+                        return index + 1;
+                    }
+                }
+            }
+            return -state - 1;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package hu.bugadani.serial;
+
+/**
+ * Common frame predicates for FrameDefinition.setPredicate()
+ */
+public final class FramePredicates {
+
+    private FramePredicates() {
+    }
+
+    /**
+     * Accept frames whose data byte at the offset is one of the values, e.g. a device address.
+     * Frames shorter than offset + 1 are rejected.
+     * <p>
+     * The values are stored in a 256 bit set, so the check costs the same for any number of values.
+     *
+     * @param offset The position of the byte in the frame data
+     * @param values The accepted values, 0 - 255 or -128 - 127
+     * @return The predicate
+     */
+    public static SerialParser.FramePredicate byteIn(int offset, int... values) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must be >= 0");
+        }
+        long[] set = new long[4];
+        for (int value : values) {
+            if (value < -128 || value > 255) {
+                throw new IllegalArgumentException("Not a byte value: " + value);
+            }
+            int b = value & 0xFF;
+            set[b >>> 6] |= 1L << b;
+        }
+        return new ByteIn(offset, set);
+    }
+
+    /**
+     * Accept frames whose data byte at the offset is not one of the values.
+     * Frames shorter than offset + 1 are rejected.
+     *
+     * @param offset The position of the byte in the frame data
+     * @param values The rejected values, 0 - 255 or -128 - 127
+     * @return The predicate
+     */
+    public static SerialParser.FramePredicate byteNotIn(int offset, int... values) {
+        ByteIn byteIn = (ByteIn) byteIn(offset, values);
+        long[] set = byteIn.mSet;
+        for (int i = 0; i < set.length; i++) {
+            set[i] = ~set[i];
+        }
+        return byteIn;
+    }
+
+    /**
+     * Accept frames that are accepted by every predicate. The predicates are evaluated in order.
+     *
+     * @param predicates The predicates
+     * @return The predicate
+     */
+    public static SerialParser.FramePredicate allOf(final SerialParser.FramePredicate... predicates) {
+        final SerialParser.FramePredicate[] copy = predicates.clone();
+        return new SerialParser.FramePredicate() {
+            public boolean accept(FrameView frame) {
+                for (SerialParser.FramePredicate predicate : copy) {
+                    if (!predicate.accept(frame)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    private static final class ByteIn implements SerialParser.FramePredicate {
+        private final int mOffset;
+        private final long[] mSet;
+
+        ByteIn(int offset, long[] set) {
+            mOffset = offset;
+            mSet = set;
+        }
+
+        public boolean accept(FrameView frame) {
+            if (frame.getSize() <= mOffset) {
+                return false;
+            }
+            int b = frame.getUnsignedByte(mOffset);
+            return (mSet[b >>> 6] & (1L << b)) != 0;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package hu.bugadani.serial;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A reusable, read-only window on the data of a matched frame.
+ * <p>
+ * The view reads the bytes where the parser holds them, nothing is copied or decoded until a value is
+ * requested. Offsets are relative to the first data byte, after the header.
+ * <p>
+ * Note: the view is only valid during the listener call. Use toByteArray() to keep the data.
+ */
+public final class FrameView implements ByteView {
+
+    private SerialParser.FrameDefinition mFrameDefinition;
+    private ByteView mSource;
+    private int mOffset;
+    private int mSize;
+
+    FrameView set(SerialParser.FrameDefinition frameDefinition, ByteView source, int offset, int size) {
+        mFrameDefinition = frameDefinition;
+        mSource = source;
+        mOffset = offset;
+        mSize = size;
+        return this;
+    }
+
+    /**
+     * @return The definition of the matched frame
+     */
+    public SerialParser.FrameDefinition getFrameDefinition() {
+        return mFrameDefinition;
+    }
+
+    /**
+     * @return The frame ID
+     */
+    public int getFrameId() {
+        return mFrameDefinition.getFrameId();
+    }
+
+    /**
+     * @return The length of the frame data
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @param n The position of the byte in the frame data
+     * @return The byte
+     */
+    public byte peek(int n) {
+        checkRange(n, 1);
+        return mSource.peek(mOffset + n);
+    }
+
+    public void copyTo(int offset, byte[] dest, int destOffset, int length) {
+        checkRange(offset, length);
+        mSource.copyTo(mOffset + offset, dest, destOffset, length);
+    }
+
+    public void copyTo(int offset, ByteBuffer dest, int length) {
+        checkRange(offset, length);
+        mSource.copyTo(mOffset + offset, dest, length);
+    }
+
+    /**
+     * @return A copy of the frame data
+     */
+    public byte[] toByteArray() {
+        byte[] data = new byte[mSize];
+        mSource.copyTo(mOffset, data, 0, mSize);
+        return data;
+    }
+
+    public int getUnsignedByte(int offset) {
+        return peek(offset) & 0xFF;
+    }
+
+    public short getShort(int offset, ByteOrder order) {
+        return (short) read(offset, 2, order);
+    }
+
+    public int getUnsignedShort(int offset, ByteOrder order) {
+        return (int) read(offset, 2, order);
+    }
+
+    public int getInt(int offset, ByteOrder order) {
+        return (int) read(offset, 4, order);
+    }
+
+    public long getUnsignedInt(int offset, ByteOrder order) {
+        return read(offset, 4, order);
+    }
+
+    public long getLong(int offset, ByteOrder order) {
+        return read(offset, 8, order);
+    }
+
+    public float getFloat(int offset, ByteOrder order) {
+        return Float.intBitsToFloat(getInt(offset, order));
+    }
+
+    public double getDouble(int offset, ByteOrder order) {
+        return Double.longBitsToDouble(getLong(offset, order));
+    }
+
+    /**
+     * Read an integer field. Signed types are sign extended, unsigned types are zero extended.
+     *
+     * @param field A field of the frame definition
+     * @return The value of the field
+     * @throws IllegalArgumentException if the field is a floating point field
+     */
+    public long getLong(FrameField field) {
+        int offset = field.getOffset();
+        ByteOrder order = field.getByteOrder();
+        switch (field.getType()) {
+            case INT8:
+                return peek(offset);
+            case UINT8:
+                return getUnsignedByte(offset);
+            case INT16:
+                return getShort(offset, order);
+            case UINT16:
+                return getUnsignedShort(offset, order);
+            case INT32:
+                return getInt(offset, order);
+            case UINT32:
+                return getUnsignedInt(offset, order);
+            case INT64:
+                return getLong(offset, order);
+            default:
+                throw new IllegalArgumentException("Not an integer field: " + field.getName());
+        }
+    }
+
+    /**
+     * Read an integer field that fits into an int, i.e. any integer type except UINT32 and INT64.
+     *
+     * @param field A field of the frame definition
+     * @return The value of the field
+     */
+    public int getInt(FrameField field) {
+        switch (field.getType()) {
+            case UINT32:
+            case INT64:
+                throw new IllegalArgumentException("Field does not fit into an int: " + field.getName());
+            default:
+                return (int) getLong(field);
+        }
+    }
+
+    /**
+     * Read any numeric field as a double.
+     *
+     * @param field A field of the frame definition
+     * @return The value of the field
+     */
+    public double getDouble(FrameField field) {
+        switch (field.getType()) {
+            case FLOAT32:
+                return getFloat(field.getOffset(), field.getByteOrder());
+            case FLOAT64:
+                return getDouble(field.getOffset(), field.getByteOrder());
+            default:
+                return getLong(field);
+        }
+    }
+
+    /**
+     * Read a field by name. Prefer looking the field up once with FrameDefinition.getField().
+     *
+     * @param name The name of the field
+     * @return The value of the field
+     */
+    public double getDouble(String name) {
+        return getDouble(mFrameDefinition.getField(name));
+    }
+
+    /**
+     * Read an integer field by name. Prefer looking the field up once with FrameDefinition.getField().
+     *
+     * @param name The name of the field
+     * @return The value of the field
+     */
+    public long getLong(String name) {
+        return getLong(mFrameDefinition.getField(name));
+    }
+
+    private long read(int offset, int length, ByteOrder order) {
+        checkRange(offset, length);
+        ByteView source = mSource;
+        int start = mOffset + offset;
+        long value = 0;
+        if (order == ByteOrder.BIG_ENDIAN) {
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | (source.peek(start + i) & 0xFF);
+            }
+        } else {
+            for (int i = length - 1; i >= 0; i--) {
+                value = (value << 8) | (source.peek(start + i) & 0xFF);
+            }
+        }
+        return value;
+    }
+
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > mSize) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", size: " + mSize);
+        }
+    }
+}
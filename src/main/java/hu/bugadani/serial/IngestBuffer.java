@@ -0,0 +1,373 @@
+package hu.bugadani.serial;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread safe buffer between the thread that receives bytes and the thread that parses them.
+ * <p>
+ * The receiving thread calls offer(), which never throws when the buffer is full. Instead, the overflow
+ * policy decides what happens with the bytes that do not fit. The parsing thread calls drainTo(), which
+ * passes the buffered bytes to a parser without holding the lock, so slow listeners do not block the
+ * receiving thread.
+ * <p>
+ * Note: drainTo and read should only be called from one thread at a time.
+ */
+public class IngestBuffer implements Closeable {
+
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest buffered bytes to make room for the new ones
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the bytes that do not fit
+         */
+        DROP_NEWEST,
+        /**
+         * Wait until the consumer makes room, or the block timeout elapses. Bytes that still do not fit are discarded.
+         */
+        BLOCK,
+        /**
+         * Write the bytes that do not fit into a memory mapped overflow file. They are read back in order, and
+         * moved back to memory as it frees up. Bytes that do not fit into the file either are discarded.
+         */
+        SPILL
+    }
+
+    private static final int DRAIN_CHUNK_SIZE = 4096;
+
+    private final OverflowPolicy mPolicy;
+    private final ByteRingBuffer mBuffer;
+    private final byte[] mDrainBuffer;
+
+    private final RandomAccessFile mSpillFile;
+    private final MappedByteBuffer mSpill;
+    private final int mSpillCapacity;
+    private int mSpillHead = 0;
+    private int mSpillSize = 0;
+
+    private long mBlockTimeout = Long.MAX_VALUE;
+    private long mDroppedCount = 0;
+    private long mSpilledCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * @param capacity The number of bytes kept in memory
+     * @param policy   The overflow policy, must not be SPILL
+     */
+    public IngestBuffer(int capacity, OverflowPolicy policy) {
+        if (policy == OverflowPolicy.SPILL) {
+            throw new IllegalArgumentException("SPILL requires an overflow file");
+        }
+        mPolicy = policy;
+        mBuffer = new ByteRingBuffer(capacity);
+        mDrainBuffer = new byte[Math.min(capacity, DRAIN_CHUNK_SIZE)];
+        mSpillFile = null;
+        mSpill = null;
+        mSpillCapacity = 0;
+    }
+
+    /**
+     * Create a buffer with the SPILL policy
+     *
+     * @param capacity      The number of bytes kept in memory
+     * @param spillFile     The overflow file, will be overwritten
+     * @param spillCapacity The maximum number of bytes in the overflow file
+     * @throws IOException
+     */
+    public IngestBuffer(int capacity, File spillFile, int spillCapacity) throws IOException {
+        if (spillCapacity <= 0) {
+            throw new IllegalArgumentException("Spill capacity must be > 0");
+        }
+        mPolicy = OverflowPolicy.SPILL;
+        mBuffer = new ByteRingBuffer(capacity);
+        mDrainBuffer = new byte[Math.min(Math.max(capacity, spillCapacity), DRAIN_CHUNK_SIZE)];
+        mSpillFile = new RandomAccessFile(spillFile, "rw");
+        try {
+            mSpillFile.setLength(spillCapacity);
+            mSpill = mSpillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, spillCapacity);
+        } catch (IOException e) {
+            mSpillFile.close();
+            throw e;
+        }
+        mSpillCapacity = spillCapacity;
+    }
+
+    /**
+     * @param timeout The maximum time offer waits for space with the BLOCK policy
+     * @param unit    The unit of timeout
+     */
+    public synchronized void setBlockTimeout(long timeout, TimeUnit unit) {
+        mBlockTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * @return The overflow policy
+     */
+    public OverflowPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Add received bytes to the buffer
+     *
+     * @param bytes The received bytes
+     * @return The number of bytes that were discarded because of the overflow policy
+     */
+    public int offer(byte[] bytes) {
+        return offer(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Add received bytes to the buffer
+     *
+     * @param bytes  The received bytes
+     * @param offset The position of the first byte
+     * @param length The number of bytes
+     * @return The number of bytes that were discarded because of the overflow policy
+     */
+    public synchronized int offer(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IllegalArgumentException("offset + length > bytes.length");
+        }
+        if (mClosed) {
+            throw new IllegalStateException("Buffer is closed");
+        }
+
+        int end = offset + length;
+        int dropped;
+        switch (mPolicy) {
+            case DROP_OLDEST:
+                dropped = 0;
+                if (length > mBuffer.getCapacity()) {
+                    //Only the last bytes fit
+                    dropped = length - mBuffer.getCapacity();
+                    offset = end - mBuffer.getCapacity();
+                }
+                int overflow = end - offset - mBuffer.getSpace();
+                if (overflow > 0) {
+                    mBuffer.skip(overflow);
+                    dropped += overflow;
+                }
+                mBuffer.add(bytes, offset, end - offset);
+                break;
+
+            case BLOCK:
+                dropped = end - addBlocking(bytes, offset, end);
+                break;
+
+            case SPILL:
+                //Memory is full while there are spilled bytes, new bytes go after them to keep the order
+                if (mSpillSize == 0) {
+                    offset = addToMemory(bytes, offset, end);
+                }
+                dropped = end - addToSpill(bytes, offset, end);
+                break;
+
+            default:
+                dropped = end - addToMemory(bytes, offset, end);
+                break;
+        }
+        notifyAll();
+
+        mDroppedCount += dropped;
+        return dropped;
+    }
+
+    /**
+     * Pass the bytes buffered at the time of the call to a parser. The lock is not held while the parser runs.
+     *
+     * @param parser The parser
+     * @return The number of bytes passed to the parser
+     */
+    public int drainTo(SerialParser parser) {
+        int remaining = available();
+        int total = 0;
+        while (total < remaining) {
+            int length = read(mDrainBuffer, 0, Math.min(mDrainBuffer.length, remaining - total));
+            if (length == 0) {
+                break;
+            }
+            parser.add(mDrainBuffer, 0, length);
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Take buffered bytes in the order they were offered
+     *
+     * @param dest   The destination array
+     * @param offset The position of the first byte in dest
+     * @param length The maximum number of bytes to take
+     * @return The number of bytes taken
+     */
+    public synchronized int read(byte[] dest, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > dest.length) {
+            throw new IllegalArgumentException("offset + length > dest.length");
+        }
+        int count = Math.min(mBuffer.getSize(), length);
+        mBuffer.copyTo(0, dest, offset, count);
+        mBuffer.skip(count);
+
+        //The spilled bytes are newer than the ones in memory
+        if (count < length && mSpillSize > 0) {
+            int spillCount = Math.min(mSpillSize, length - count);
+            for (int i = 0; i < spillCount; i++) {
+                dest[offset + count + i] = mSpill.get(mSpillHead);
+                if (++mSpillHead == mSpillCapacity) {
+                    mSpillHead = 0;
+                }
+            }
+            mSpillSize -= spillCount;
+            count += spillCount;
+        }
+        refillFromSpill();
+        if (count > 0) {
+            notifyAll();
+        }
+        return count;
+    }
+
+    /**
+     * Wait until bytes are available
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of timeout
+     * @return False if the timeout elapsed
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitData(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (available() == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || mClosed) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of buffered bytes, including the spilled ones
+     */
+    public synchronized int available() {
+        return mBuffer.getSize() + mSpillSize;
+    }
+
+    /**
+     * @return The number of bytes currently in the overflow file
+     */
+    public synchronized int getSpilledSize() {
+        return mSpillSize;
+    }
+
+    /**
+     * @return The total number of bytes written to the overflow file
+     */
+    public synchronized long getSpilledCount() {
+        return mSpilledCount;
+    }
+
+    /**
+     * @return The total number of bytes discarded because of the overflow policy
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Wake up the blocked threads and close the overflow file. Buffered bytes can still be read.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+        }
+        if (mSpillFile != null) {
+            //The mapping stays valid until it is garbage collected
+            mSpillFile.close();
+        }
+    }
+
+    private int addToMemory(byte[] bytes, int offset, int end) {
+        int copyLength = Math.min(mBuffer.getSpace(), end - offset);
+        mBuffer.add(bytes, offset, copyLength);
+        return offset + copyLength;
+    }
+
+    private int addBlocking(byte[] bytes, int offset, int end) {
+        offset = addToMemory(bytes, offset, end);
+        if (offset < end) {
+            notifyAll();
+        }
+        long deadline = System.nanoTime() + mBlockTimeout;
+        boolean interrupted = false;
+        while (offset < end && !mClosed) {
+            long remaining = mBlockTimeout == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                if (remaining == Long.MAX_VALUE) {
+                    wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+            int added = addToMemory(bytes, offset, end);
+            if (added > offset) {
+                //Wake up the consumer, otherwise both threads wait on a full buffer
+                notifyAll();
+                offset = added;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return offset;
+    }
+
+    /**
+     * Move spilled bytes into the freed memory, so memory and file capacity add up
+     */
+    private void refillFromSpill() {
+        int length = Math.min(mSpillSize, mBuffer.getSpace());
+        for (int i = 0; i < length; i++) {
+            mBuffer.add(mSpill.get(mSpillHead));
+            if (++mSpillHead == mSpillCapacity) {
+                mSpillHead = 0;
+            }
+        }
+        mSpillSize -= length;
+    }
+
+    private int addToSpill(byte[] bytes, int offset, int end) {
+        int length = Math.min(mSpillCapacity - mSpillSize, end - offset);
+        int tail = (mSpillHead + mSpillSize) % mSpillCapacity;
+        for (int i = 0; i < length; i++) {
+            mSpill.put(tail, bytes[offset + i]);
+            if (++tail == mSpillCapacity) {
+                tail = 0;
+            }
+        }
+        mSpillSize += length;
+        mSpilledCount += length;
+        return offset + length;
+    }
+}
@@ -0,0 +1,191 @@
+package hu.bugadani.serial;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of non-negative long values, in the style of HdrHistogram.
+ * <p>
+ * Values are counted in buckets whose width grows with the magnitude of the value, so the relative
+ * error of a recorded value is bounded by 2^-(precisionBits - 1) over the full long range,
+ * with a fixed memory footprint.
+ * <p>
+ * Note: this class is not thread safe.
+ */
+public class LatencyHistogram {
+
+    public static final int DEFAULT_PRECISION_BITS = 7;
+
+    private final int mPrecisionBits;
+    private final int mHalfCount;
+    private final long[] mCounts;
+
+    private long mTotalCount = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+    private double mSum = 0;
+
+    /**
+     * Create a histogram with a relative error of about 1.5%
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * @param precisionBits The number of bits used to store the value in a bucket, 1..16
+     */
+    public LatencyHistogram(int precisionBits) {
+        checkPrecisionBits(precisionBits);
+        mPrecisionBits = precisionBits;
+        mHalfCount = 1 << (precisionBits - 1);
+
+        int maxBucket = Math.max(0, 62 - (precisionBits - 1));
+        mCounts = new long[indexOf(maxBucket, Long.MAX_VALUE >> maxBucket) + 1];
+    }
+
+    static void checkPrecisionBits(int precisionBits) {
+        if (precisionBits < 1 || precisionBits > 16) {
+            throw new IllegalArgumentException("Precision must be in range 1..16");
+        }
+    }
+
+    private LatencyHistogram(LatencyHistogram other) {
+        mPrecisionBits = other.mPrecisionBits;
+        mHalfCount = other.mHalfCount;
+        mCounts = other.mCounts.clone();
+        mTotalCount = other.mTotalCount;
+        mMin = other.mMin;
+        mMax = other.mMax;
+        mSum = other.mSum;
+    }
+
+    private int bucketOf(long value) {
+        int log2 = 63 - Long.numberOfLeadingZeros(value | 1);
+        return Math.max(0, log2 - (mPrecisionBits - 1));
+    }
+
+    private int indexOf(int bucket, long subBucket) {
+        return (int) (bucket * mHalfCount + subBucket);
+    }
+
+    private int indexOf(long value) {
+        int bucket = bucketOf(value);
+        return indexOf(bucket, value >> bucket);
+    }
+
+    private long highestValueAt(int index) {
+        int bucket = index < 2 * mHalfCount ? 0 : index / mHalfCount - 1;
+        long subBucket = index - (long) bucket * mHalfCount;
+        long lowest = subBucket << bucket;
+        return lowest + (1L << bucket) - 1;
+    }
+
+    /**
+     * Count a value. Negative values are counted as 0.
+     *
+     * @param value The value
+     */
+    public void recordValue(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts[indexOf(value)]++;
+        mTotalCount++;
+        mSum += value;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * @return The number of recorded values
+     */
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * @return The smallest recorded value, or 0 if the histogram is empty
+     */
+    public long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    /**
+     * @return The largest recorded value, or 0 if the histogram is empty
+     */
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0 if the histogram is empty
+     */
+    public double getMean() {
+        return mTotalCount == 0 ? 0 : mSum / mTotalCount;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall.
+     * The result is the upper bound of the bucket, but never more than the largest recorded value.
+     *
+     * @param percentile The percentile in range 0..100
+     * @return The value at the percentile, or 0 if the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be in range 0..100");
+        }
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long count = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            count += mCounts[i];
+            if (count >= target) {
+                return Math.min(highestValueAt(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Add the counts of another histogram with the same precision
+     *
+     * @param other The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        if (other.mPrecisionBits != mPrecisionBits) {
+            throw new IllegalArgumentException("Histogram precisions differ");
+        }
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mSum += other.mSum;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /**
+     * Remove every recorded value
+     */
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+        mSum = 0;
+    }
+
+    /**
+     * @return An independent copy of the histogram
+     */
+    public LatencyHistogram copy() {
+        return new LatencyHistogram(this);
+    }
+}
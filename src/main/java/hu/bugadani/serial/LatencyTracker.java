@@ -0,0 +1,132 @@
+package hu.bugadani.serial;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects per frame id latency histograms from a SerialParser.
+ * <p>
+ * Two latencies are measured for every matched frame, in nanoseconds:
+ * <ul>
+ * <li>queue latency: from the add call that delivered the first byte of the frame until the listeners are called</li>
+ * <li>listener latency: the time spent in the frame's listeners</li>
+ * </ul>
+ * Recording happens on the parser's thread, snapshots can be taken from any thread.
+ */
+public class LatencyTracker {
+
+    /**
+     * An immutable copy of the latencies of one frame id
+     */
+    public static final class FrameLatency {
+        private final int mFrameId;
+        private final LatencyHistogram mQueueLatency;
+        private final LatencyHistogram mListenerLatency;
+
+        private FrameLatency(int frameId, LatencyHistogram queueLatency, LatencyHistogram listenerLatency) {
+            mFrameId = frameId;
+            mQueueLatency = queueLatency;
+            mListenerLatency = listenerLatency;
+        }
+
+        public int getFrameId() {
+            return mFrameId;
+        }
+
+        /**
+         * @return The time between the arrival of the first byte and the start of the dispatch
+         */
+        public LatencyHistogram getQueueLatency() {
+            return mQueueLatency.copy();
+        }
+
+        /**
+         * @return The time spent in the listeners
+         */
+        public LatencyHistogram getListenerLatency() {
+            return mListenerLatency.copy();
+        }
+    }
+
+    static final class Recorder {
+        final LatencyHistogram queueLatency;
+        final LatencyHistogram listenerLatency;
+
+        Recorder(int precisionBits) {
+            queueLatency = new LatencyHistogram(precisionBits);
+            listenerLatency = new LatencyHistogram(precisionBits);
+        }
+
+        synchronized void record(long queueLatency, long listenerLatency) {
+            this.queueLatency.recordValue(queueLatency);
+            this.listenerLatency.recordValue(listenerLatency);
+        }
+    }
+
+    private final int mPrecisionBits;
+    private final Map<Integer, Recorder> mRecorders = new HashMap<Integer, Recorder>();
+
+    /**
+     * Create a tracker using the default histogram precision
+     */
+    public LatencyTracker() {
+        this(LatencyHistogram.DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * @param precisionBits The precision of the histograms, see LatencyHistogram
+     */
+    public LatencyTracker(int precisionBits) {
+        LatencyHistogram.checkPrecisionBits(precisionBits);
+        mPrecisionBits = precisionBits;
+    }
+
+    /**
+     * The parser looks up the recorders once, so recording does not need a map lookup.
+     */
+    Recorder recorder(int frameId) {
+        synchronized (mRecorders) {
+            Recorder recorder = mRecorders.get(frameId);
+            if (recorder == null) {
+                recorder = new Recorder(mPrecisionBits);
+                mRecorders.put(frameId, recorder);
+            }
+            return recorder;
+        }
+    }
+
+    /**
+     * @return A copy of the latencies recorded so far, by frame id
+     */
+    public Map<Integer, FrameLatency> snapshot() {
+        Map<Integer, FrameLatency> snapshot = new HashMap<Integer, FrameLatency>();
+        synchronized (mRecorders) {
+            for (Map.Entry<Integer, Recorder> entry : mRecorders.entrySet()) {
+                Recorder recorder = entry.getValue();
+                synchronized (recorder) {
+                    snapshot.put(entry.getKey(), new FrameLatency(
+                            entry.getKey(),
+                            recorder.queueLatency.copy(),
+                            recorder.listenerLatency.copy()
+                    ));
+                }
+            }
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * Remove every recorded value
+     */
+    public void reset() {
+        synchronized (mRecorders) {
+            for (Recorder recorder : mRecorders.values()) {
+                synchronized (recorder) {
+                    recorder.queueLatency.reset();
+                    recorder.listenerLatency.reset();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package hu.bugadani.serial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches frames of an inner protocol inside the data of outer frames.
+ * <p>
+ * Add the grammar as a view listener to the outer frame definition. The data of every outer frame is scanned
+ * in place, from the beginning, for the inner frame definitions: at every position, the first matching
+ * definition in the order they were added wins, otherwise the byte is skipped. An inner frame that is not
+ * complete at the end of the outer data is not matched.
+ * <p>
+ * Inner frames are passed to the listeners of their frame definition and to the grammar's listener, which
+ * also gets the path of frame ids from the outermost frame. Inner frames can contain further grammars.
+ * Nothing is copied on any level, unless a FrameMatchListener requests the data.
+ * <p>
+ * Note: a grammar must not be nested into itself.
+ */
+public class NestedGrammar implements SerialParser.FrameViewListener {
+
+    /**
+     * Receives the frames of a nested grammar
+     */
+    public interface NestedFrameListener {
+        /**
+         * @param path  The frame ids from the outermost frame to this frame. The array is reused,
+         *              only the first depth elements are valid.
+         * @param depth The number of frames in the path
+         * @param frame A view of the frame data. The view is reused, so it must not be stored.
+         */
+        void onFrameMatched(int[] path, int depth, FrameView frame);
+    }
+
+    private final List<SerialParser.FrameDefinition> mFrameDefinitions = new ArrayList<SerialParser.FrameDefinition>();
+    private final Map<Integer, NestedGrammar> mNestedGrammars = new HashMap<Integer, NestedGrammar>();
+    private SerialParser.FrameDefinition[][] mDispatchTable = null;
+    private NestedFrameListener mListener = null;
+
+    private final FrameView mWindow = new FrameView();
+    private final FrameView mView = new FrameView();
+    private int[] mPath = new int[4];
+    private long mMatchedCount = 0;
+    private long mSkippedCount = 0;
+
+    /**
+     * Add an inner frame definition
+     *
+     * @param frameDefinition The frame definition, must not be added to a parser or another grammar
+     * @return Fluent interface
+     */
+    public NestedGrammar addFrameDefinition(SerialParser.FrameDefinition frameDefinition) {
+        return addFrameDefinition(frameDefinition, null);
+    }
+
+    /**
+     * Add an inner frame definition whose data contains frames of another grammar
+     *
+     * @param frameDefinition The frame definition, must not be added to a parser or another grammar
+     * @param nested          The grammar of the frame's data, or null
+     * @return Fluent interface
+     */
+    public NestedGrammar addFrameDefinition(SerialParser.FrameDefinition frameDefinition, NestedGrammar nested) {
+        for (SerialParser.FrameDefinition fd : mFrameDefinitions) {
+            if (fd.getFrameId() == frameDefinition.getFrameId()) {
+                throw new IllegalArgumentException("Duplicate frame id: " + frameDefinition.getFrameId());
+            }
+        }
+        frameDefinition.setInited();
+        mFrameDefinitions.add(frameDefinition);
+        if (nested != null) {
+            mNestedGrammars.put(frameDefinition.getFrameId(), nested);
+        }
+        mDispatchTable = null;
+        return this;
+    }
+
+    /**
+     * @param listener Receives the inner frames with their path
+     * @return Fluent interface
+     */
+    public NestedGrammar setListener(NestedFrameListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * @return The number of inner frames matched
+     */
+    public long getMatchedCount() {
+        return mMatchedCount;
+    }
+
+    /**
+     * @return The number of outer data bytes that did not belong to an inner frame
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    public void onFrameMatched(FrameView frame) {
+        mPath[0] = frame.getFrameId();
+        scan(frame, 1);
+    }
+
+    private void scan(FrameView outer, int depth) {
+        if (mDispatchTable == null) {
+            mDispatchTable = SerialParser.createDispatchTable(mFrameDefinitions.toArray(new SerialParser.FrameDefinition[0]));
+        }
+
+        int size = outer.getSize();
+        int position = 0;
+        while (position < size) {
+            FrameView window = mWindow.set(null, outer, position, size - position);
+            SerialParser.FrameDefinition matched = null;
+            int match = SerialParser.FrameDefinition.MATCHED_NO;
+            for (SerialParser.FrameDefinition fd : mDispatchTable[outer.peek(position) & 0xFF]) {
+                match = fd.match(window);
+                if (match > 0) {
+                    matched = fd;
+                    break;
+                }
+            }
+            if (matched == null) {
+                mSkippedCount++;
+                position++;
+                continue;
+            }
+
+            int payloadLength = matched.getPayloadLength(match);
+            if (matched.accepts(window, payloadLength)) {
+                mMatchedCount++;
+                onInnerFrame(matched, window, payloadLength, depth);
+            }
+            position += match;
+        }
+    }
+
+    private void onInnerFrame(SerialParser.FrameDefinition fd, FrameView window, int payloadLength, int depth) {
+        if (depth == mPath.length) {
+            mPath = Arrays.copyOf(mPath, depth * 2);
+        }
+        mPath[depth] = fd.getFrameId();
+
+        fd.matched(window, payloadLength);
+        FrameView view = mView.set(fd, window, fd.getHeaderLength(), payloadLength);
+        if (mListener != null) {
+            mListener.onFrameMatched(mPath, depth + 1, view);
+        }
+
+        NestedGrammar nested = mNestedGrammars.get(fd.getFrameId());
+        if (nested != null) {
+            //The nested grammar continues the path
+            if (nested.mPath.length < mPath.length) {
+                nested.mPath = new int[mPath.length];
+            }
+            System.arraycopy(mPath, 0, nested.mPath, 0, depth + 1);
+            nested.scan(view, depth + 1);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package hu.bugadani.serial;
+
+/**
+ * Reports parser internals to a monitoring backend.
+ * <p>
+ * This class does nothing. On Java 11 and later, the multi-release jar contains JfrParserEvents, which turns
+ * the calls into JDK Flight Recorder events. It is loaded reflectively, so the library still runs on Java 7.
+ * <p>
+ * Callers check isEnabled() first, so the cost is a single call while no recording is running.
+ */
+class ParserEvents {
+
+    static final ParserEvents INSTANCE = load();
+
+    private static ParserEvents load() {
+        if (Boolean.getBoolean("hu.bugadani.serial.disableEvents")) {
+            return new ParserEvents();
+        }
+        try {
+            return (ParserEvents) Class.forName("hu.bugadani.serial.JfrParserEvents").getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            //Before Java 11, not running from the multi-release jar, or without JFR
+            return new ParserEvents();
+        }
+    }
+
+    /**
+     * @return False if the other methods would not record anything
+     */
+    boolean isEnabled() {
+        return false;
+    }
+
+    /**
+     * @param frameId The id of the matched frame
+     * @param length  The length of the frame data
+     */
+    void frameMatched(int frameId, int length) {
+    }
+
+    /**
+     * Called when the parser drops the first byte that does not belong to a frame
+     *
+     * @return A token for resynced()
+     */
+    Object resyncStarted() {
+        return null;
+    }
+
+    /**
+     * Called when a frame is matched after dropped bytes
+     *
+     * @param token        The token returned by resyncStarted()
+     * @param droppedBytes The number of dropped bytes
+     */
+    void resynced(Object token, long droppedBytes) {
+    }
+
+    /**
+     * Called when a byte is lost because the buffer is full
+     *
+     * @param capacity The capacity of the buffer
+     */
+    void bufferFull(int capacity) {
+    }
+
+    /**
+     * Called before the listeners of a frame are called
+     *
+     * @param frameId The id of the matched frame
+     * @return A token for listenerFinished()
+     */
+    Object listenerStarted(int frameId) {
+        return null;
+    }
+
+    /**
+     * Called after the listeners of a frame returned
+     *
+     * @param token The token returned by listenerStarted()
+     */
+    void listenerFinished(Object token) {
+    }
+}
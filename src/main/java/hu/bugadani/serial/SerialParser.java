@@ -1,10 +1,19 @@
 package hu.bugadani.serial;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.InterruptedByTimeoutException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class SerialParser {
 
@@ -38,12 +47,123 @@ public class SerialParser {
         void onFrameMatched(FrameDefinition frame, byte[] data);
     }
 
+    /**
+     * Receives matched frames without copying their data.
+     */
+    public interface FrameViewListener {
+
+        /**
+         * @param frame A view of the frame data. The view is reused, so it must not be stored.
+         */
+        void onFrameMatched(FrameView frame);
+    }
+
+    /**
+     * Receives the data of a variable length frame in chunks while it arrives, so the frame does not
+     * have to fit into the buffer.
+     */
+    public interface FrameStreamListener {
+
+        /**
+         * Called when the header of a frame has been received.
+         *
+         * @param frame The frame definition
+         */
+        void onFrameStart(FrameDefinition frame);
+
+        /**
+         * @param chunk The next part of the frame data. The view is reused, so it must not be stored.
+         */
+        void onFrameChunk(FrameView chunk);
+
+        /**
+         * @param frame    The frame definition
+         * @param complete False if the frame was abandoned because of a timeout
+         */
+        void onFrameEnd(FrameDefinition frame, boolean complete);
+    }
+
+    /**
+     * Decides whether a matched frame is dispatched. See FramePredicates for common predicates.
+     */
+    public interface FramePredicate {
+
+        /**
+         * Called before the data is copied or any listener is called.
+         *
+         * @param frame A view of the frame data. The view is reused, so it must not be stored.
+         * @return False to consume the frame without dispatching it
+         */
+        boolean accept(FrameView frame);
+    }
+
+    /**
+     * Receives every frame that was matched during a single add call at once.
+     */
+    public interface FrameBatchListener {
+
+        /**
+         * @param batch The matched frames. The batch is reused, so it must not be stored.
+         */
+        void onFramesMatched(FrameBatch batch);
+    }
+
+    /**
+     * Selects the frame that is consumed when more than one frame definition matches.
+     */
+    public enum MatchPolicy {
+        /**
+         * Evaluate every frame definition and consume the shortest matched frame.
+         * Every matching frame definition's listeners are called.
+         */
+        SHORTEST,
+
+        /**
+         * Evaluate frame definitions in the order they were added and stop at the first match.
+         * A partially received frame waits for more bytes when its definition comes before the matching one.
+         */
+        FIRST,
+
+        /**
+         * Evaluate frame definitions in descending priority and stop at the first match.
+         * Frame definitions of equal priority are evaluated in the order they were added.
+         * A partially received frame waits for more bytes when its definition comes before the matching one.
+         */
+        PRIORITY
+    }
+
+    /**
+     * Selects what happens with a partially received frame when a timeout expires.
+     */
+    public enum TimeoutAction {
+        /**
+         * Drop the stale bytes and resynchronize on the bytes received afterwards.
+         */
+        DISCARD,
+
+        /**
+         * Report a started variable length frame with the bytes received so far as its data,
+         * as if the terminating byte had arrived. Other stale bytes are dropped.
+         */
+        COMPLETE
+    }
+
     /**
      * This class is used to initialize a SerialParser instance.
      */
     public static class Builder {
         private int mBufferSize = 0;
         private int mLongestFrameSize = 0;
+        private FrameBatchListener mBatchListener = null;
+        private MatchPolicy mMatchPolicy = MatchPolicy.SHORTEST;
+        private boolean mAdaptiveOrdering = false;
+        private StreamRecorder mRecorder = null;
+        private long mInterByteTimeout = 0;
+        private long mFrameTimeout = 0;
+        private TimeoutAction mTimeoutAction = TimeoutAction.DISCARD;
+        private Clock mClock = Clock.SYSTEM;
+        private TimerWheel mTimerWheel = null;
+        private LatencyTracker mLatencyTracker = null;
 
         private final List<FrameDefinition> mFrameDefinitionList = new ArrayList<FrameDefinition>();
         private final List<Integer> mFrameIds = new ArrayList<Integer>();
@@ -62,6 +182,152 @@ public class SerialParser {
             return this;
         }
 
+        /**
+         * Sets a listener that receives the frames matched during one add call as a single batch.
+         * <p>
+         * Note: listeners added to the frame definitions are still called for every frame.
+         *
+         * @param listener The batch listener or null
+         * @return Fluent interface
+         */
+        public Builder setBatchListener(FrameBatchListener listener) {
+            mBatchListener = listener;
+
+            return this;
+        }
+
+        /**
+         * Sets how the parser chooses between frame definitions that match at the same position.
+         *
+         * @param matchPolicy The match policy, SHORTEST by default
+         * @return Fluent interface
+         */
+        public Builder setMatchPolicy(MatchPolicy matchPolicy) {
+            if (matchPolicy == null) {
+                throw new IllegalArgumentException("Match policy must not be null");
+            }
+            mMatchPolicy = matchPolicy;
+
+            return this;
+        }
+
+        /**
+         * Periodically reorders the frame definitions so that the most frequently matched ones are evaluated first.
+         * <p>
+         * Note: this is only allowed with the FIRST match policy and should only be used when
+         * at most one frame definition can match at any position.
+         *
+         * @param adaptiveOrdering True to enable adaptive ordering
+         * @return Fluent interface
+         */
+        public Builder setAdaptiveOrdering(boolean adaptiveOrdering) {
+            mAdaptiveOrdering = adaptiveOrdering;
+
+            return this;
+        }
+
+        /**
+         * Sets a recorder that receives a copy of every byte added to the parser.
+         *
+         * @param recorder The recorder or null
+         * @return Fluent interface
+         */
+        public Builder setRecorder(StreamRecorder recorder) {
+            mRecorder = recorder;
+
+            return this;
+        }
+
+        /**
+         * Sets the time after which buffered bytes are considered stale if no new bytes arrive.
+         *
+         * @param timeout The timeout, 0 to disable
+         * @param unit    The unit of timeout
+         * @return Fluent interface
+         */
+        public Builder setInterByteTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("Timeout must be >= 0");
+            }
+            mInterByteTimeout = unit.toNanos(timeout);
+
+            return this;
+        }
+
+        /**
+         * Sets the time a partially received frame may wait for its remaining bytes.
+         *
+         * @param timeout The timeout, 0 to disable
+         * @param unit    The unit of timeout
+         * @return Fluent interface
+         */
+        public Builder setFrameTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("Timeout must be >= 0");
+            }
+            mFrameTimeout = unit.toNanos(timeout);
+
+            return this;
+        }
+
+        /**
+         * @param timeoutAction What to do with a stale partial frame, DISCARD by default
+         * @return Fluent interface
+         */
+        public Builder setTimeoutAction(TimeoutAction timeoutAction) {
+            if (timeoutAction == null) {
+                throw new IllegalArgumentException("Timeout action must not be null");
+            }
+            mTimeoutAction = timeoutAction;
+
+            return this;
+        }
+
+        /**
+         * Sets the time source used for timeouts
+         *
+         * @param clock The clock
+         * @return Fluent interface
+         */
+        public Builder setClock(Clock clock) {
+            if (clock == null) {
+                throw new IllegalArgumentException("Clock must not be null");
+            }
+            mClock = clock;
+
+            return this;
+        }
+
+        /**
+         * Sets a timer wheel that triggers the timeout checks. The parser uses the clock of the wheel.
+         * <p>
+         * Without a timer wheel, checkTimeout() has to be called periodically.
+         *
+         * @param timerWheel The timer wheel or null
+         * @return Fluent interface
+         */
+        public Builder setTimerWheel(TimerWheel timerWheel) {
+            mTimerWheel = timerWheel;
+            if (timerWheel != null) {
+                mClock = timerWheel.getClock();
+            }
+
+            return this;
+        }
+
+        /**
+         * Sets a tracker that collects the queue and listener latency of every matched frame.
+         * The parser's clock is used to measure time.
+         *
+         * @param latencyTracker The tracker or null to disable latency tracking
+         * @return Fluent interface
+         */
+        public Builder setLatencyTracker(LatencyTracker latencyTracker) {
+            mLatencyTracker = latencyTracker;
+
+            return this;
+        }
+
         /**
          * @param frameDefinition The frame definition to be added
          * @return Fluent interface
@@ -94,10 +360,44 @@ public class SerialParser {
                 }
             }
 
+            if (mAdaptiveOrdering && mMatchPolicy != MatchPolicy.FIRST) {
+                throw new IllegalStateException("Adaptive ordering requires the FIRST match policy");
+            }
+
+            List<FrameDefinition> definitions = new ArrayList<FrameDefinition>(mFrameDefinitionList);
+            if (mMatchPolicy == MatchPolicy.PRIORITY) {
+                //Collections.sort is stable, so equal priorities keep their order
+                Collections.sort(definitions, new Comparator<FrameDefinition>() {
+                    public int compare(FrameDefinition a, FrameDefinition b) {
+                        return a.mPriority < b.mPriority ? 1 : (a.mPriority == b.mPriority ? 0 : -1);
+                    }
+                });
+            }
+
             ByteRingBuffer byteRingBuffer = new ByteRingBuffer(Math.max(mLongestFrameSize, mBufferSize));
-            FrameDefinition[] frameDefinitions = mFrameDefinitionList.toArray(new FrameDefinition[0]);
+            FrameDefinition[] frameDefinitions = definitions.toArray(new FrameDefinition[0]);
+
+            SerialParser parser = new SerialParser(byteRingBuffer, frameDefinitions, mLongestFrameSize);
+            parser.mMatchPolicy = mMatchPolicy;
+            parser.mRecorder = mRecorder;
+            parser.mInterByteTimeout = mInterByteTimeout;
+            parser.mFrameTimeout = mFrameTimeout;
+            parser.mTimeoutAction = mTimeoutAction;
+            parser.mClock = mClock;
+            parser.mTimerWheel = mTimerWheel;
+            if (mLatencyTracker != null) {
+                for (FrameDefinition fd : frameDefinitions) {
+                    fd.mLatencyRecorder = mLatencyTracker.recorder(fd.mFrameId);
+                }
+                parser.mTrackLatency = true;
+            }
+            parser.mAdaptiveOrdering = mAdaptiveOrdering;
+            if (mBatchListener != null) {
+                parser.mBatchListener = mBatchListener;
+                parser.mBatch = new FrameBatch(16, byteRingBuffer.getCapacity());
+            }
 
-            return new SerialParser(byteRingBuffer, frameDefinitions, mLongestFrameSize);
+            return parser;
         }
     }
 
@@ -114,11 +414,22 @@ public class SerialParser {
 
         private byte[] mHeader;
         private int mDataLength = VARIABLE_LENGTH;
-        private boolean mHasTerminatingByte = false;
-        private byte mTerminatingByte = 0;
+        private byte[] mTerminator = new byte[0];
+        private int mPriority = 0;
         private boolean mInitialized = false;
+        private LatencyTracker.Recorder mLatencyRecorder = null;
+        private FrameMatcher mMatcher = null;
+        private int mHits = 0;
+        private FramePredicate mPredicate = null;
+        private FrameStreamListener mStreamListener = null;
+        private long mRejectedCount = 0;
 
         private final FrameMatchListener.Aggregator listeners = new FrameMatchListener.Aggregator();
+        private final List<FrameViewListener> mViewListeners = new ArrayList<FrameViewListener>();
+        private final FrameView mView = new FrameView();
+
+        private final List<FrameField> mFields = new ArrayList<FrameField>();
+        private final Map<String, FrameField> mFieldsByName = new HashMap<String, FrameField>();
 
         /**
          * Construct a FrameDefinition instance
@@ -178,6 +489,27 @@ public class SerialParser {
             return mFrameId;
         }
 
+        /**
+         * @return A copy of the header bytes
+         */
+        public byte[] getHeader() {
+            return mHeader.clone();
+        }
+
+        /**
+         * @return The data length or VARIABLE_LENGTH
+         */
+        public int getDataLength() {
+            return mDataLength;
+        }
+
+        /**
+         * @return A copy of the terminator bytes, empty if the frame has no terminator
+         */
+        public byte[] getTerminator() {
+            return mTerminator.clone();
+        }
+
         private void initGuard() {
             if (mInitialized) {
                 throw new IllegalStateException("FrameDefinition is already initialized");
@@ -196,17 +528,164 @@ public class SerialParser {
             return this;
         }
 
+        /**
+         * Set the priority used by the PRIORITY match policy. Higher priorities are evaluated first.
+         *
+         * @param priority The priority, 0 by default
+         * @return Fluent interface
+         */
+        public FrameDefinition setPriority(int priority) {
+            initGuard();
+            mPriority = priority;
+            return this;
+        }
+
         /**
          * @param terminatingByte
          * @return Fluent interface
          */
         public FrameDefinition setTerminatingByte(byte terminatingByte) {
+            return setTerminator(new byte[]{terminatingByte});
+        }
+
+        /**
+         * Set a sequence of bytes that ends the frame, e.g. "\r\n"
+         *
+         * @param terminator
+         * @return Fluent interface
+         */
+        public FrameDefinition setTerminator(String terminator) {
+            return setTerminator(terminator.getBytes());
+        }
+
+        /**
+         * Set a sequence of bytes that ends the frame
+         *
+         * @param terminator One or more bytes
+         * @return Fluent interface
+         */
+        public FrameDefinition setTerminator(byte[] terminator) {
+            initGuard();
+            if (terminator.length == 0) {
+                throw new IllegalArgumentException("Terminator must not be empty");
+            }
+            mTerminator = terminator.clone();
+            return this;
+        }
+
+        /**
+         * Declare a big endian field in the frame data
+         *
+         * @param name   The name of the field
+         * @param offset The position of the field in the frame data, after the header
+         * @param type   The type of the field
+         * @return Fluent interface
+         */
+        public FrameDefinition addField(String name, int offset, FrameField.Type type) {
+            return addField(name, offset, type, ByteOrder.BIG_ENDIAN);
+        }
+
+        /**
+         * Declare a field in the frame data
+         *
+         * @param name      The name of the field
+         * @param offset    The position of the field in the frame data, after the header
+         * @param type      The type of the field
+         * @param byteOrder The byte order of the field
+         * @return Fluent interface
+         */
+        public FrameDefinition addField(String name, int offset, FrameField.Type type, ByteOrder byteOrder) {
+            initGuard();
+            if (mFieldsByName.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate field name: " + name);
+            }
+            FrameField field = new FrameField(name, offset, type, byteOrder);
+            mFields.add(field);
+            mFieldsByName.put(name, field);
+            return this;
+        }
+
+        /**
+         * @param name The name of the field
+         * @return The field
+         * @throws IllegalArgumentException if there is no such field
+         */
+        public FrameField getField(String name) {
+            FrameField field = mFieldsByName.get(name);
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown field: " + name);
+            }
+            return field;
+        }
+
+        /**
+         * @return The declared fields
+         */
+        public List<FrameField> getFields() {
+            return Collections.unmodifiableList(mFields);
+        }
+
+        /**
+         * Add a listener that will be called with a view of the frame data when the frame is matched.
+         * Unlike FrameMatchListener, this does not copy the data.
+         *
+         * @param listener
+         * @return Fluent interface
+         */
+        public FrameDefinition addViewListener(FrameViewListener listener) {
+            if (!mViewListeners.contains(listener)) {
+                mViewListeners.add(listener);
+            }
+            return this;
+        }
+
+        /**
+         * Remove a view listener
+         *
+         * @param listener
+         * @return Fluent interface
+         */
+        public FrameDefinition removeViewListener(FrameViewListener listener) {
+            mViewListeners.remove(listener);
+            return this;
+        }
+
+        /**
+         * Stream the data of the frame to a listener while it arrives. Only for variable length frames.
+         * <p>
+         * A frame that does not fit into the buffer is delivered in chunks of at most the buffer size. Bytes that
+         * may be the beginning of the terminator are held back until the next chunk. Such frames are only reported
+         * to the stream listener, the predicate and the other listeners are not called. Frames that fit into the
+         * buffer are reported to the stream listener as a single chunk, and to the other listeners as usual.
+         *
+         * @param listener The listener, or null to disable streaming
+         * @return Fluent interface
+         */
+        public FrameDefinition setStreamListener(FrameStreamListener listener) {
             initGuard();
-            mTerminatingByte = terminatingByte;
-            mHasTerminatingByte = true;
+            mStreamListener = listener;
+            return this;
+        }
+
+        /**
+         * Set a filter that is evaluated on the buffered bytes before the frame is dispatched.
+         * Rejected frames are consumed, but no listener is called and no data is copied.
+         *
+         * @param predicate The filter, or null to dispatch every frame
+         * @return Fluent interface
+         */
+        public FrameDefinition setPredicate(FramePredicate predicate) {
+            mPredicate = predicate;
             return this;
         }
 
+        /**
+         * @return The number of matched frames that were rejected by the predicate
+         */
+        public long getRejectedCount() {
+            return mRejectedCount;
+        }
+
         /**
          * Add a listener that will be called when the frame is matched
          *
@@ -229,81 +708,230 @@ public class SerialParser {
             return this;
         }
 
-        private void setInited() {
+        void setInited() {
             initGuard();
-            if (mDataLength == VARIABLE_LENGTH && !mHasTerminatingByte) {
+            if (mDataLength == VARIABLE_LENGTH && mTerminator.length == 0) {
                 throw new IllegalStateException("Variable length frames require a terminating byte");
             }
+            if (mDataLength != VARIABLE_LENGTH && mStreamListener != null) {
+                throw new IllegalStateException("Only variable length frames can be streamed");
+            }
+            if (mDataLength != VARIABLE_LENGTH) {
+                for (FrameField field : mFields) {
+                    if (field.getEnd() > mDataLength) {
+                        throw new IllegalStateException("Field does not fit into the frame: " + field.getName());
+                    }
+                }
+            }
+            mMatcher = FrameMatcher.create(mHeader, mDataLength, mTerminator);
             mInitialized = true;
         }
 
         private int match(ByteRingBuffer syncBuffer) {
+            return mMatcher.match(syncBuffer, syncBuffer.getReadPosition());
+        }
 
-            if (syncBuffer.getSize() <= mHeader.length) {
-                //return Maybe if buffer does not have enough data
-                return MATCHED_MAYBE;
-            }
-
-            //Get header bytes
-            byte[] headerBytes = syncBuffer.peekMultiple(mHeader.length);
+        /**
+         * Match the beginning of a view without keeping search state
+         */
+        int match(ByteView view) {
+            return mMatcher.match(view, -1);
+        }
 
-            //Check header bytes
-            if (!Arrays.equals(mHeader, headerBytes)) {
-                return MATCHED_NO;
-            }
+        int getHeaderLength() {
+            return mHeader.length;
+        }
 
-            int bufferSize = syncBuffer.getSize();
-            if (mDataLength == VARIABLE_LENGTH) {
-                //Find the offset of mTerminatingByte in the buffer
-                for (int index = mHeader.length; index < bufferSize; index++) {
-                    if (syncBuffer.peek(index) == mTerminatingByte) {
-                        int matchedDataLength = index - mHeader.length;
-                        return matched(syncBuffer, matchedDataLength);
-                    }
-                }
-            } else {
-                int frameLength = getFrameLength();
-                if (bufferSize >= frameLength) {
-                    //There is enough data to process - look for the terminating byte
-                    if (!mHasTerminatingByte || mTerminatingByte == syncBuffer.peek(frameLength - 1)) {
-                        return matched(syncBuffer, mDataLength);
-                    }
+        private int getFrameLength() {
+            return mHeader.length + mDataLength + mTerminator.length;
+        }
 
-                    //Terminating byte did not match
-                    return MATCHED_NO;
-                }
-            }
+        int getPayloadLength(int matchLength) {
+            return matchLength - mHeader.length - mTerminator.length;
+        }
 
-            return MATCHED_MAYBE;
+        private boolean headerMatches(ByteRingBuffer syncBuffer) {
+            return mMatcher.matchHeader(syncBuffer, syncBuffer.getSize()) == FrameMatcher.HEADER_MATCHED;
         }
 
-        private int getFrameLength() {
-            return mHeader.length + mDataLength + (mHasTerminatingByte ? 1 : 0);
+        boolean accepts(ByteView source, int payloadLength) {
+            if (mPredicate == null || mPredicate.accept(mView.set(this, source, mHeader.length, payloadLength))) {
+                return true;
+            }
+            mRejectedCount++;
+            return false;
         }
 
-        private int matched(ByteRingBuffer syncBuffer, int length) {
-            int matchLength = mHeader.length + length + (mHasTerminatingByte ? 1 : 0);
+        void matched(ByteView source, int payloadLength) {
+            if (mStreamListener != null) {
+                mStreamListener.onFrameStart(this);
+                mStreamListener.onFrameChunk(mView.set(this, source, mHeader.length, payloadLength));
+                mStreamListener.onFrameEnd(this, true);
+            }
+
+            if (!mViewListeners.isEmpty()) {
+                FrameView view = mView.set(this, source, mHeader.length, payloadLength);
+                for (int i = 0; i < mViewListeners.size(); i++) {
+                    mViewListeners.get(i).onFrameMatched(view);
+                }
+            }
+
+            if (listeners.getListeners().isEmpty()) {
+                return;
+            }
 
             //get the data bytes
-            byte[] data = syncBuffer.peekMultiple(matchLength);
-            byte[] trimmed = new byte[length];
-            ByteBuffer.wrap(data, mHeader.length, length).get(trimmed);
+            byte[] data = new byte[payloadLength];
+            source.copyTo(mHeader.length, data, 0, data.length);
 
             //trigger event
-            listeners.onFrameMatched(this, trimmed);
-
-            return matchLength;
+            listeners.onFrameMatched(this, data);
         }
     }
 
     private final ByteRingBuffer mSyncBuffer;
     private final FrameDefinition[] mFrameDefinitions;
     private final int mLongestFrameSize;
+    private FrameBatchListener mBatchListener = null;
+    private FrameBatch mBatch = null;
+    private MatchPolicy mMatchPolicy = MatchPolicy.SHORTEST;
+    private boolean mAdaptiveOrdering = false;
+
+    /**
+     * The frame definitions that can match, indexed by the first byte of the buffer
+     */
+    final FrameDefinition[][] mDispatchTable;
+
+    /**
+     * True if every frame has a fixed length and a header that is not the prefix of another header.
+     * A synchronized stream of such frames can be sliced without buffering.
+     */
+    private final boolean mAligned;
+    private boolean mInSync = true;
+    private final ArrayByteView mArrayView = new ArrayByteView();
+    private StreamRecorder mRecorder = null;
+
+    /**
+     * The frame that is being streamed, or null. The buffer starts with the bytes after the last chunk,
+     * the first mStreamState of which match the beginning of the terminator.
+     */
+    private FrameDefinition mStreamedFrame = null;
+    private int mStreamState = 0;
+
+    /**
+     * Pull mode state: the input passed to feed() that has not been processed, the cursor of the running
+     * nextFrame call, and the length of the pulled frame that is kept at the beginning of the buffer.
+     */
+    private byte[] mPendingInput = null;
+    private int mPendingStart = 0;
+    private int mPendingOffset = 0;
+    private int mPendingEnd = 0;
+    private FrameCursor mPullCursor = null;
+    private int mPulledLength = -1;
+
+    /**
+     * Monitoring events, and the state of the current run of dropped bytes
+     */
+    ParserEvents mEvents = ParserEvents.INSTANCE;
+    private Object mResyncToken = null;
+    private long mResyncDropped = 0;
+    private int mMatchesSinceReorder = 0;
+
+    private long mInterByteTimeout = 0;
+    private long mFrameTimeout = 0;
+    private TimeoutAction mTimeoutAction = TimeoutAction.DISCARD;
+    private Clock mClock = Clock.SYSTEM;
+    private TimerWheel mTimerWheel = null;
+    private TimerWheel.Timeout mTimeout = null;
+    private long mLastByteTime = 0;
+    private long mPendingSince = 0;
+    private long mPendingPosition = -1;
+
+    /**
+     * The number of bytes removed from the buffer since the parser was created
+     */
+    private long mConsumed = 0;
+
+    /**
+     * The number of bytes added to the parser since it was created
+     */
+    private long mIngested = 0;
+
+    /**
+     * Arrival times of the add calls with unprocessed bytes, stored as a queue of
+     * (stream position after the call, time) pairs. Only used when latency is tracked.
+     */
+    private boolean mTrackLatency = false;
+    private long[] mArrivalPositions = new long[0];
+    private long[] mArrivalTimes = new long[0];
+    private int mArrivalHead = 0;
+    int mArrivalCount = 0;
+
+    private final TimerWheel.Task mTimeoutTask = new TimerWheel.Task() {
+        public void run(TimerWheel.Timeout timeout) {
+            mTimeout = null;
+            onTimerExpired();
+        }
+    };
+
+    /**
+     * The number of matches between two reorderings in adaptive mode
+     */
+    private static final int REORDER_INTERVAL = 1024;
+
+    private static final int SNAPSHOT_MAGIC = 0x53505353;
+    private static final int SNAPSHOT_VERSION = 1;
 
     protected SerialParser(ByteRingBuffer byteRingBuffer, FrameDefinition[] frameDefinitions, int longestFrameSize) {
         mSyncBuffer = byteRingBuffer;
         mFrameDefinitions = frameDefinitions;
         mLongestFrameSize = longestFrameSize;
+        mDispatchTable = createDispatchTable(frameDefinitions);
+        mAligned = isAligned(frameDefinitions);
+    }
+
+    private static boolean isAligned(FrameDefinition[] frameDefinitions) {
+        if (frameDefinitions.length == 0) {
+            return false;
+        }
+        for (FrameDefinition fd : frameDefinitions) {
+            if (fd.mDataLength == FrameDefinition.VARIABLE_LENGTH || fd.mHeader.length == 0) {
+                return false;
+            }
+            for (FrameDefinition other : frameDefinitions) {
+                if (other != fd && other.mHeader.length >= fd.mHeader.length
+                        && Arrays.equals(fd.mHeader, Arrays.copyOf(other.mHeader, fd.mHeader.length))) {
+                    //The header of fd is a prefix of other's header
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * In aligned mode, bytes added while the parser is synchronized to the frame boundaries are matched
+     * directly in the added array. Buffering is only used for incomplete frames and to resynchronize.
+     *
+     * @return True if the frame definitions allow aligned mode
+     */
+    public boolean isAligned() {
+        return mAligned;
+    }
+
+    static FrameDefinition[][] createDispatchTable(FrameDefinition[] frameDefinitions) {
+        FrameDefinition[][] table = new FrameDefinition[256][];
+        List<FrameDefinition> candidates = new ArrayList<FrameDefinition>();
+        for (int b = 0; b < 256; b++) {
+            candidates.clear();
+            for (FrameDefinition fd : frameDefinitions) {
+                if (fd.mHeader.length == 0 || (fd.mHeader[0] & 0xFF) == b) {
+                    candidates.add(fd);
+                }
+            }
+            table[b] = candidates.toArray(new FrameDefinition[0]);
+        }
+        return table;
     }
 
     /**
@@ -312,8 +940,15 @@ public class SerialParser {
      * @param b
      */
     public void add(byte b) {
-        mSyncBuffer.add(b);
-        process();
+        checkNoPendingInput();
+        if (mRecorder != null) {
+            mRecorder.record(b);
+        }
+        if (mTrackLatency) {
+            noteArrival(1);
+        }
+        addByteInternal(b);
+        afterAdd();
     }
 
     /**
@@ -322,52 +957,552 @@ public class SerialParser {
      * @param bytes
      */
     public void add(byte[] bytes) {
-        if (bytes.length > mLongestFrameSize) {
-            //Add in longest frame length blocks
-            byte[] b = new byte[mLongestFrameSize];
-            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-            while (buffer.remaining() >= mLongestFrameSize) {
-                buffer.get(b, 0, mLongestFrameSize);
-                addInternal(b);
+        add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Adds a number of bytes to the internal buffer and tries to match frames.
+     *
+     * @param bytes
+     * @param offset The position of the first byte to add
+     * @param length The number of bytes to add
+     */
+    public void add(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IllegalArgumentException("offset + length > bytes.length");
+        }
+        checkNoPendingInput();
+        if (mRecorder != null) {
+            mRecorder.record(bytes, offset, length);
+        }
+        if (mTrackLatency) {
+            noteArrival(length);
+        }
+        addInternal(bytes, offset, offset + length);
+        afterAdd();
+    }
+
+    /**
+     * Pass bytes to the parser without matching them. The frames are taken with nextFrame().
+     * <p>
+     * The array is not copied. It must not be modified until nextFrame() has returned false.
+     *
+     * @param bytes
+     * @param offset The position of the first byte
+     * @param length The number of bytes
+     * @throws IllegalStateException if the previously fed bytes have not been processed
+     */
+    public void feed(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IllegalArgumentException("offset + length > bytes.length");
+        }
+        checkNoPendingInput();
+        releasePulledFrame();
+        if (mRecorder != null) {
+            mRecorder.record(bytes, offset, length);
+        }
+        if (mTrackLatency) {
+            noteArrival(length);
+        }
+        mPendingInput = bytes;
+        mPendingStart = offset;
+        mPendingOffset = offset;
+        mPendingEnd = offset + length;
+    }
+
+    /**
+     * Pass bytes to the parser without matching them. The frames are taken with nextFrame().
+     *
+     * @param bytes
+     * @see #feed(byte[], int, int)
+     */
+    public void feed(byte[] bytes) {
+        feed(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Match the next frame in the fed bytes.
+     * <p>
+     * Pulled frames are not passed to the listeners of their frame definition or to the batch listener.
+     * Predicates and stream listeners work as in push mode. When more than one frame definition matches,
+     * the frame is reported once, as the frame definition selected by the match policy.
+     *
+     * @param cursor Set to the matched frame
+     * @return False if every fed byte has been processed and no frame is left
+     */
+    public boolean nextFrame(FrameCursor cursor) {
+        releasePulledFrame();
+        mPullCursor = cursor;
+        try {
+            while (true) {
+                process();
+                if (mPulledLength >= 0) {
+                    return true;
+                }
+                if (mPendingInput == null) {
+                    return false;
+                }
+                if (pullAligned(cursor)) {
+                    return true;
+                }
+                if (mPendingOffset == mPendingEnd) {
+                    mPendingInput = null;
+                    afterAdd();
+                    return false;
+                }
+
+                int copyLength = getCopyLength(mPendingStart, mPendingOffset, mPendingEnd);
+                mSyncBuffer.add(mPendingInput, mPendingOffset, copyLength);
+                mPendingOffset += copyLength;
             }
-            //Set the bytes array to the remaining bytes
-            bytes = new byte[buffer.remaining()];
-            buffer.get(bytes, 0, bytes.length);
+        } finally {
+            mPullCursor = null;
         }
-        //Add (remaining) bytes
-        addInternal(bytes);
     }
 
-    private void addInternal(byte[] bytes) {
-        if (bytes.length == 0) {
-            return;
+    private void checkNoPendingInput() {
+        if (mPendingInput != null) {
+            throw new IllegalStateException("The fed bytes have not been processed, call nextFrame() until it returns false");
+        }
+    }
+
+    private void releasePulledFrame() {
+        if (mPulledLength >= 0) {
+            consume(mPulledLength);
+            mInSync = mSyncBuffer.isEmpty();
+            mPulledLength = -1;
+        }
+    }
+
+    /**
+     * Match a frame directly in the fed array while the stream is synchronized.
+     *
+     * @return True if the cursor was set to a frame
+     */
+    private boolean pullAligned(FrameCursor cursor) {
+        while (mAligned && mInSync && mSyncBuffer.isEmpty() && mPendingOffset < mPendingEnd) {
+            byte[] bytes = mPendingInput;
+            int offset = mPendingOffset;
+            ArrayByteView view = cursor.mArrayView.set(bytes, offset, mPendingEnd - offset);
+
+            FrameDefinition matched = null;
+            int match = FrameDefinition.MATCHED_NO;
+            for (FrameDefinition fd : mDispatchTable[bytes[offset] & 0xFF]) {
+                match = fd.mMatcher.match(view, -1);
+                if (match != FrameDefinition.MATCHED_NO) {
+                    matched = fd;
+                    break;
+                }
+            }
+
+            if (match == FrameDefinition.MATCHED_MAYBE) {
+                //An incomplete frame, the rest goes into the buffer
+                return false;
+            }
+            if (match == FrameDefinition.MATCHED_NO) {
+                //Lost synchronization, fall back to buffered matching
+                mInSync = false;
+                return false;
+            }
+
+            if (mAdaptiveOrdering) {
+                countHit(matched);
+            }
+            long position = mConsumed;
+            int payloadLength = matched.getPayloadLength(match);
+            mPendingOffset += match;
+            mConsumed += match;
+            if (matched.accepts(view, payloadLength)) {
+                cursor.set(matched, view, position, matched.mHeader.length, payloadLength);
+                return true;
+            }
         }
+        return false;
+    }
 
-        if (bytes.length == 1) {
-            add(bytes[0]);
-        } else if (mSyncBuffer.getSpace() >= bytes.length) {
-            addBytesInternal(bytes, bytes.length);
+    /**
+     * Checks whether the buffered bytes have timed out and handles them according to the timeout action.
+     * <p>
+     * This is called automatically when a timer wheel is set.
+     *
+     * @return True if stale bytes were removed from the buffer
+     */
+    public boolean checkTimeout() {
+        //The pulled frame is complete, it must not be mistaken for stale bytes
+        releasePulledFrame();
+        if (!hasTimeouts() || !hasPendingBytes()) {
+            return false;
+        }
+
+        long now = mClock.nanoTime();
+        boolean interByteExpired = mInterByteTimeout > 0 && now - mLastByteTime >= mInterByteTimeout;
+        boolean frameExpired = mFrameTimeout > 0 && now - mPendingSince >= mFrameTimeout;
+        if (!interByteExpired && !frameExpired) {
+            return false;
+        }
+
+        if (mStreamedFrame != null) {
+            //The buffered bytes belong to the streamed frame
+            expireStream();
+        } else if (interByteExpired) {
+            //Nothing arrived for a while, so every buffered byte is stale
+            while (!mSyncBuffer.isEmpty()) {
+                expireHead();
+            }
         } else {
-            ByteBuffer buffer = ByteBuffer.wrap(bytes);
-            byte[] b = new byte[Math.min(mLongestFrameSize, bytes.length)];
+            expireHead();
+        }
+        dispatchBatch();
+
+        if (mSyncBuffer.isEmpty()) {
+            mPendingPosition = -1;
+        } else {
+            mPendingPosition = mConsumed;
+            mPendingSince = now;
+        }
+        return true;
+    }
+
+    /**
+     * @return A hash of the frame definitions and the match policy. Snapshots can only be restored
+     * into parsers with the same fingerprint.
+     */
+    public long getGrammarFingerprint() {
+        //64 bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        hash = fingerprint(hash, mMatchPolicy.ordinal());
+        hash = fingerprint(hash, mFrameDefinitions.length);
+        for (FrameDefinition fd : mFrameDefinitions) {
+            hash = fingerprint(hash, fd.mFrameId);
+            hash = fingerprint(hash, fd.mDataLength);
+            hash = fingerprint(hash, fd.mPriority);
+            hash = fingerprint(hash, fd.mHeader);
+            hash = fingerprint(hash, fd.mTerminator);
+        }
+        return hash;
+    }
+
+    private static long fingerprint(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long fingerprint(long hash, byte[] bytes) {
+        hash = fingerprint(hash, bytes.length);
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Save the state of the parser, i.e. the unprocessed bytes and the progress of the frame search.
+     * <p>
+     * Listeners, timeouts, statistics and fed bytes that have not been processed by nextFrame()
+     * are not part of the snapshot.
+     *
+     * @return The snapshot, which can be restored with restoreState()
+     */
+    public byte[] saveState() {
+        //A pulled frame has already been reported
+        int skipped = Math.max(0, mPulledLength);
+        int size = mSyncBuffer.getSize() - skipped;
+        long position = mSyncBuffer.getReadPosition() + skipped;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(40 + 12 * mFrameDefinitions.length + size);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+            out.writeLong(getGrammarFingerprint());
+            out.writeLong(mConsumed + skipped);
+            out.writeBoolean(mInSync);
+            out.writeInt(mStreamedFrame == null ? -1 : Arrays.asList(mFrameDefinitions).indexOf(mStreamedFrame));
+            out.writeInt(mStreamState);
+            out.writeInt(mMatchesSinceReorder);
+            for (FrameDefinition fd : mFrameDefinitions) {
+                int scanIndex = fd.mMatcher.getScanIndex(position);
+                out.writeInt(fd.mHits);
+                out.writeInt(scanIndex);
+                out.writeInt(scanIndex == -1 ? 0 : fd.mMatcher.getScanState());
+            }
+            out.writeInt(size);
+            byte[] buffered = new byte[size];
+            mSyncBuffer.copyTo(skipped, buffered, 0, size);
+            out.write(buffered);
+        } catch (IOException e) {
+            //ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replace the state of the parser with a snapshot, e.g. to continue parsing a stream on another
+     * machine. The parser continues with the next byte after the ones the snapshot was taken at.
+     *
+     * @param snapshot A snapshot created by saveState()
+     * @throws IllegalArgumentException if the snapshot is invalid, was taken from a parser with different frame
+     *                                  definitions, or does not fit into the buffer
+     */
+    public void restoreState(byte[] snapshot) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        int[] hits = new int[mFrameDefinitions.length];
+        int[] scanIndices = new int[mFrameDefinitions.length];
+        int[] scanStates = new int[mFrameDefinitions.length];
+        long consumed;
+        boolean inSync;
+        int streamedFrame;
+        int streamState;
+        int matchesSinceReorder;
+        byte[] buffered;
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != SNAPSHOT_VERSION) {
+                throw new IllegalArgumentException("Not a parser snapshot");
+            }
+            if (in.readLong() != getGrammarFingerprint()) {
+                throw new IllegalArgumentException("The snapshot was taken with different frame definitions");
+            }
+            consumed = in.readLong();
+            inSync = in.readBoolean();
+            streamedFrame = in.readInt();
+            streamState = in.readInt();
+            if (streamedFrame < -1 || streamedFrame >= mFrameDefinitions.length
+                    || (streamedFrame != -1 && mFrameDefinitions[streamedFrame].mStreamListener == null)) {
+                throw new IllegalArgumentException("Invalid streamed frame");
+            }
+            matchesSinceReorder = in.readInt();
+            for (int i = 0; i < mFrameDefinitions.length; i++) {
+                hits[i] = in.readInt();
+                scanIndices[i] = in.readInt();
+                scanStates[i] = in.readInt();
+            }
+            int size = in.readInt();
+            if (size < 0 || size > mSyncBuffer.getCapacity()) {
+                throw new IllegalArgumentException("The snapshot does not fit into the buffer");
+            }
+            for (int i = 0; i < mFrameDefinitions.length; i++) {
+                //Checked before any state changes, so a rejected snapshot leaves the parser untouched
+                if (scanIndices[i] != -1 && (scanIndices[i] > size
+                        || !mFrameDefinitions[i].mMatcher.isValidScanState(scanIndices[i], scanStates[i]))) {
+                    throw new IllegalArgumentException("Invalid scan state");
+                }
+            }
+            if (streamState < 0 || streamState > size) {
+                throw new IllegalArgumentException("Invalid stream state");
+            }
+            buffered = new byte[size];
+            in.readFully(buffered);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated snapshot", e);
+        }
+
+        mSyncBuffer.skip(mSyncBuffer.getSize());
+        mSyncBuffer.add(buffered);
+        mPulledLength = -1;
+        mPendingInput = null;
+        long position = mSyncBuffer.getReadPosition();
+        for (int i = 0; i < mFrameDefinitions.length; i++) {
+            FrameDefinition fd = mFrameDefinitions[i];
+            fd.mHits = hits[i];
+            if (scanIndices[i] != -1) {
+                fd.mMatcher.resume(position, scanIndices[i], scanStates[i]);
+            }
+        }
+        if (mAdaptiveOrdering) {
+            sortDispatchTable();
+        }
+        mMatchesSinceReorder = matchesSinceReorder;
+        mConsumed = consumed;
+        mInSync = inSync;
+        mStreamedFrame = streamedFrame == -1 ? null : mFrameDefinitions[streamedFrame];
+        mStreamState = streamState;
 
-            while (buffer.remaining() > 0) {
-                int copyLength = Math.min(mSyncBuffer.getSpace(), buffer.remaining());
-                buffer.get(b, 0, copyLength);
+        //Timeouts and latency measurement start over from the time of the restore
+        mIngested = consumed;
+        mArrivalHead = 0;
+        mArrivalCount = 0;
+        if (mTrackLatency) {
+            noteArrival(buffered.length);
+        }
+        if (mTimeout != null) {
+            mTimeout.cancel();
+            mTimeout = null;
+        }
+        mPendingPosition = -1;
+        if (hasTimeouts()) {
+            updateTimeoutState();
+        }
+    }
+
+    private boolean hasTimeouts() {
+        return mInterByteTimeout > 0 || mFrameTimeout > 0;
+    }
+
+    private boolean hasPendingBytes() {
+        return !mSyncBuffer.isEmpty() || mStreamedFrame != null;
+    }
+
+    private void afterAdd() {
+        dispatchBatch();
+        if (hasTimeouts()) {
+            updateTimeoutState();
+        }
+    }
+
+    private void updateTimeoutState() {
+        long now = mClock.nanoTime();
+        mLastByteTime = now;
+        if (!hasPendingBytes()) {
+            mPendingPosition = -1;
+            return;
+        }
+        //The frame timeout of a streamed frame is measured from its header
+        if (mPendingPosition != mConsumed && mStreamedFrame == null) {
+            //A new partial frame is at the beginning of the buffer
+            mPendingPosition = mConsumed;
+            mPendingSince = now;
+        }
+        if (mTimerWheel != null && mTimeout == null) {
+            scheduleTimeout(now);
+        }
+    }
+
+    private void scheduleTimeout(long now) {
+        long deadline = Long.MAX_VALUE;
+        if (mInterByteTimeout > 0) {
+            deadline = mLastByteTime + mInterByteTimeout;
+        }
+        if (mFrameTimeout > 0) {
+            deadline = Math.min(deadline, mPendingSince + mFrameTimeout);
+        }
+        mTimeout = mTimerWheel.schedule(mTimeoutTask, Math.max(0, deadline - now), TimeUnit.NANOSECONDS);
+    }
+
+    private void onTimerExpired() {
+        //The deadline may have moved since the timeout was scheduled, checkTimeout uses the current one
+        checkTimeout();
+        if (hasPendingBytes()) {
+            scheduleTimeout(mClock.nanoTime());
+        }
+    }
+
+    private void expireStream() {
+        boolean complete = mTimeoutAction == TimeoutAction.COMPLETE;
+        int size = mSyncBuffer.getSize();
+        if (complete && size > 0) {
+            //The held back bytes were not a terminator after all
+            mStreamedFrame.mStreamListener.onFrameChunk(mStreamedFrame.mView.set(mStreamedFrame, mSyncBuffer, 0, size));
+        }
+        consume(size);
+        endStream(complete);
+    }
 
-                addBytesInternal(b, copyLength);
+    private void expireHead() {
+        releasePulledFrame();
+        if (mTimeoutAction == TimeoutAction.COMPLETE) {
+            for (FrameDefinition fd : mFrameDefinitions) {
+                if (fd.mDataLength == FrameDefinition.VARIABLE_LENGTH && fd.headerMatches(mSyncBuffer)) {
+                    int size = mSyncBuffer.getSize();
+                    onMatched(fd, mSyncBuffer, size - fd.mHeader.length);
+                    consume(size);
+                    return;
+                }
+            }
+        }
+        consume(1);
+        process();
+    }
+
+    private void addInternal(byte[] bytes, int offset, int end) {
+        int start = offset;
+        while (offset < end) {
+            if (mAligned && mInSync && mSyncBuffer.isEmpty()) {
+                offset = addAligned(bytes, offset, end);
+                if (offset == end) {
+                    break;
+                }
+            }
+
+            int copyLength = getCopyLength(start, offset, end);
+            addBytesInternal(bytes, offset, copyLength);
+            offset += copyLength;
+        }
+    }
+
+    /**
+     * The input is added in longest frame length blocks counted from its first byte, and a block is split further
+     * when the buffer has less space. The matched frames depend on these boundaries, so they must not move.
+     *
+     * @param start  The position of the first byte of the input
+     * @param offset The position of the next byte to add
+     * @param end    The position after the last byte of the input
+     * @return The number of bytes to add to the buffer
+     */
+    private int getCopyLength(int start, int offset, int end) {
+        int space = mSyncBuffer.getSpace();
+        if (mStreamedFrame != null) {
+            //A streamed frame is delivered in chunks as large as the buffer allows
+            return Math.min(space, end - offset);
+        }
+        int blockRemaining = mLongestFrameSize - (offset - start) % mLongestFrameSize;
+        return Math.min(space, Math.min(blockRemaining, end - offset));
+    }
+
+    /**
+     * Match frames directly in the added bytes while the stream is synchronized.
+     *
+     * @return The position of the first byte that was not processed
+     */
+    private int addAligned(byte[] bytes, int offset, int end) {
+        ArrayByteView view = mArrayView;
+        while (offset < end) {
+            view.set(bytes, offset, end - offset);
+
+            FrameDefinition matched = null;
+            int match = FrameDefinition.MATCHED_NO;
+            for (FrameDefinition fd : mDispatchTable[bytes[offset] & 0xFF]) {
+                match = fd.mMatcher.match(view, -1);
+                if (match != FrameDefinition.MATCHED_NO) {
+                    matched = fd;
+                    break;
+                }
+            }
+
+            if (match == FrameDefinition.MATCHED_MAYBE) {
+                //An incomplete frame, the rest goes into the buffer
+                break;
+            }
+            if (match == FrameDefinition.MATCHED_NO) {
+                //Lost synchronization, fall back to buffered matching
+                mInSync = false;
+                break;
+            }
+
+            if (mAdaptiveOrdering) {
+                countHit(matched);
             }
+            onMatched(matched, view, matched.getPayloadLength(match));
+            offset += match;
+            mConsumed += match;
         }
+        return offset;
     }
 
-    private void addBytesInternal(byte[] bytes, int length) {
-        mSyncBuffer.add(bytes, length);
+    private void addByteInternal(byte b) {
+        mSyncBuffer.add(b);
+        process();
+    }
+
+    private void addBytesInternal(byte[] bytes, int offset, int length) {
+        mSyncBuffer.add(bytes, offset, length);
         process();
     }
 
     private void process() {
         while (!mSyncBuffer.isEmpty()) {
-            if (!step()) {
+            if (mStreamedFrame != null ? !streamStep() : !step()) {
                 break;
             }
         }
@@ -379,33 +1514,290 @@ public class SerialParser {
     private boolean step() {
         boolean removeByte = true;
         int matchedBytes = Integer.MAX_VALUE;
-        for (FrameDefinition fd : mFrameDefinitions) {
+        FrameDefinition shortest = null;
+        //Only the frame definitions whose header starts with the current byte are evaluated
+        FrameDefinition[] frameDefinitions = mDispatchTable[mSyncBuffer.peek() & 0xFF];
+        for (int i = 0; i < frameDefinitions.length; i++) {
+            FrameDefinition fd = frameDefinitions[i];
             int match = fd.match(mSyncBuffer);
             switch (match) {
                 case FrameDefinition.MATCHED_NO:
                     //Empty; match next frame definition
                     break;
                 case FrameDefinition.MATCHED_MAYBE:
+                    if (mMatchPolicy != MatchPolicy.SHORTEST && !mSyncBuffer.isFull()) {
+                        //A higher ranked frame may still match, so the result does not depend on how the input is split
+                        return false;
+                    }
                     //Match next frame definition, but don't remove a byte if none is matching
                     removeByte = false;
                     break;
                 default:
-                    //Stop matching
-                    matchedBytes = Math.min(matchedBytes, match);
+                    if (mMatchPolicy != MatchPolicy.SHORTEST) {
+                        //The first match wins, skip the remaining frame definitions
+                        if (mAdaptiveOrdering) {
+                            countHit(fd);
+                        }
+                        return consumeMatch(fd, match, true);
+                    }
+                    //Every matching frame definition is notified
+                    if (mPullCursor == null) {
+                        onMatched(fd, mSyncBuffer, fd.getPayloadLength(match));
+                    }
+                    if (match < matchedBytes) {
+                        matchedBytes = match;
+                        shortest = fd;
+                    }
                     break;
             }
         }
         //If there was a match, remove the shortest matched frame
-        if (matchedBytes < Integer.MAX_VALUE) {
-            mSyncBuffer.remove(matchedBytes);
-            return true;
+        if (shortest != null) {
+            return consumeMatch(shortest, matchedBytes, false);
         }
         //There was at least one 'Maybe'
-        if (!removeByte && !mSyncBuffer.isFull()) {
-            //wait for next input
-            return false;
+        if (!removeByte) {
+            if (!mSyncBuffer.isFull()) {
+                //wait for next input
+                return false;
+            }
+            //The frame does not fit into the buffer, stream it if possible
+            for (FrameDefinition fd : frameDefinitions) {
+                if (fd.mStreamListener != null && fd.headerMatches(mSyncBuffer)) {
+                    startStream(fd);
+                    return true;
+                }
+            }
+            if (mEvents.isEnabled()) {
+                mEvents.bufferFull(mSyncBuffer.getCapacity());
+            }
         }
-        mSyncBuffer.remove();
+        if (mEvents.isEnabled()) {
+            if (mResyncDropped == 0) {
+                mResyncToken = mEvents.resyncStarted();
+            }
+            mResyncDropped++;
+        }
+        consume(1);
+        mInSync = false;
         return true;
     }
+
+    /**
+     * @param fd       The matched frame definition
+     * @param length   The length of the matched frame
+     * @param dispatch Whether the listeners still have to be called
+     * @return Whether the processing can continue
+     */
+    private boolean consumeMatch(FrameDefinition fd, int length, boolean dispatch) {
+        endResync();
+        int payloadLength = fd.getPayloadLength(length);
+        if (mPullCursor != null) {
+            if (fd.accepts(mSyncBuffer, payloadLength)) {
+                //The frame stays in the buffer until the next nextFrame call
+                mPullCursor.set(fd, mSyncBuffer, mConsumed, fd.mHeader.length, payloadLength);
+                mPulledLength = length;
+                return false;
+            }
+        } else if (dispatch) {
+            onMatched(fd, mSyncBuffer, payloadLength);
+        }
+        consume(length);
+        mInSync = mSyncBuffer.isEmpty();
+        return true;
+    }
+
+    private void endResync() {
+        if (mResyncDropped > 0) {
+            mEvents.resynced(mResyncToken, mResyncDropped);
+            mResyncToken = null;
+            mResyncDropped = 0;
+        }
+    }
+
+    private void startStream(FrameDefinition fd) {
+        if (hasTimeouts() && mPendingPosition != mConsumed) {
+            mPendingPosition = mConsumed;
+            mPendingSince = mClock.nanoTime();
+        }
+        mStreamedFrame = fd;
+        mStreamState = 0;
+        consume(fd.mHeader.length);
+        mInSync = false;
+        fd.mStreamListener.onFrameStart(fd);
+    }
+
+    /**
+     * Pass the buffered data of the streamed frame to its listener
+     *
+     * @return True if the frame ended
+     */
+    private boolean streamStep() {
+        FrameDefinition fd = mStreamedFrame;
+        int result = ((FrameMatcher.VariableLength) fd.mMatcher).scan(mSyncBuffer, mStreamState, mStreamState);
+        int terminatorLength = fd.mTerminator.length;
+        if (result >= 0) {
+            int dataLength = result - terminatorLength;
+            if (dataLength > 0) {
+                fd.mStreamListener.onFrameChunk(fd.mView.set(fd, mSyncBuffer, 0, dataLength));
+            }
+            consume(result);
+            endStream(true);
+            mInSync = mSyncBuffer.isEmpty();
+            return true;
+        }
+
+        //Hold back the bytes that may be the beginning of the terminator
+        mStreamState = -result - 1;
+        int dataLength = mSyncBuffer.getSize() - mStreamState;
+        if (dataLength > 0) {
+            fd.mStreamListener.onFrameChunk(fd.mView.set(fd, mSyncBuffer, 0, dataLength));
+            consume(dataLength);
+        }
+        return false;
+    }
+
+    private void endStream(boolean complete) {
+        FrameDefinition fd = mStreamedFrame;
+        mStreamedFrame = null;
+        mStreamState = 0;
+        fd.mStreamListener.onFrameEnd(fd, complete);
+    }
+
+    private void consume(int length) {
+        mSyncBuffer.skip(length);
+        mConsumed += length;
+    }
+
+    private void countHit(FrameDefinition fd) {
+        fd.mHits++;
+        if (++mMatchesSinceReorder < REORDER_INTERVAL) {
+            return;
+        }
+        mMatchesSinceReorder = 0;
+        sortDispatchTable();
+
+        //Age the counts so the order can follow changes in the traffic
+        for (FrameDefinition frameDefinition : mFrameDefinitions) {
+            frameDefinition.mHits >>= 1;
+        }
+    }
+
+    private void sortDispatchTable() {
+        for (FrameDefinition[] frameDefinitions : mDispatchTable) {
+            //Stable insertion sort by descending hit count - the order rarely changes
+            for (int i = 1; i < frameDefinitions.length; i++) {
+                FrameDefinition current = frameDefinitions[i];
+                int j = i - 1;
+                while (j >= 0 && frameDefinitions[j].mHits < current.mHits) {
+                    frameDefinitions[j + 1] = frameDefinitions[j];
+                    j--;
+                }
+                frameDefinitions[j + 1] = current;
+            }
+        }
+    }
+
+    /**
+     * @param fd            The matched frame definition
+     * @param source        The bytes of the frame, starting at position 0
+     * @param payloadLength The length of the frame's data
+     */
+    private void onMatched(FrameDefinition fd, ByteView source, int payloadLength) {
+        endResync();
+        if (!fd.accepts(source, payloadLength)) {
+            return;
+        }
+        ParserEvents events = mEvents;
+        if (events.isEnabled()) {
+            events.frameMatched(fd.mFrameId, payloadLength);
+            Object token = events.listenerStarted(fd.mFrameId);
+            try {
+                dispatchMeasured(fd, source, payloadLength);
+            } finally {
+                events.listenerFinished(token);
+            }
+        } else {
+            dispatchMeasured(fd, source, payloadLength);
+        }
+    }
+
+    private void dispatchMeasured(FrameDefinition fd, ByteView source, int payloadLength) {
+        if (!mTrackLatency) {
+            dispatch(fd, source, payloadLength);
+            return;
+        }
+
+        long start = mClock.nanoTime();
+        long arrival = arrivalTimeOf(mConsumed);
+        dispatch(fd, source, payloadLength);
+        fd.mLatencyRecorder.record(start - arrival, mClock.nanoTime() - start);
+    }
+
+    private void dispatch(FrameDefinition fd, ByteView source, int payloadLength) {
+        fd.matched(source, payloadLength);
+        if (mBatch != null) {
+            mBatch.add(fd.mFrameId, source, fd.mHeader.length, payloadLength);
+        }
+    }
+
+    private void noteArrival(int length) {
+        if (length == 0) {
+            return;
+        }
+        //Bytes that are never dispatched (noise, rejected or expired frames) are forgotten here
+        forgetArrivals(mConsumed, 0);
+        if (mArrivalCount == mArrivalPositions.length) {
+            int capacity = Math.max(8, mArrivalCount * 2);
+            long[] positions = new long[capacity];
+            long[] times = new long[capacity];
+            for (int i = 0; i < mArrivalCount; i++) {
+                int index = (mArrivalHead + i) % mArrivalPositions.length;
+                positions[i] = mArrivalPositions[index];
+                times[i] = mArrivalTimes[index];
+            }
+            mArrivalPositions = positions;
+            mArrivalTimes = times;
+            mArrivalHead = 0;
+        }
+        mIngested += length;
+
+        int tail = (mArrivalHead + mArrivalCount) % mArrivalPositions.length;
+        mArrivalPositions[tail] = mIngested;
+        mArrivalTimes[tail] = mClock.nanoTime();
+        mArrivalCount++;
+    }
+
+    /**
+     * @param position A stream position
+     * @return The time of the add call that delivered the byte at the position
+     */
+    private long arrivalTimeOf(long position) {
+        forgetArrivals(position, 1);
+        return mArrivalTimes[mArrivalHead];
+    }
+
+    /**
+     * Forget the calls whose bytes have all been consumed
+     *
+     * @param position The first unconsumed stream position
+     * @param keep     The minimum number of calls to keep
+     */
+    private void forgetArrivals(long position, int keep) {
+        while (mArrivalCount > keep && mArrivalPositions[mArrivalHead] <= position) {
+            mArrivalHead = (mArrivalHead + 1) % mArrivalPositions.length;
+            mArrivalCount--;
+        }
+    }
+
+    private void dispatchBatch() {
+        if (mBatch == null || mBatch.isEmpty()) {
+            return;
+        }
+        try {
+            mBatchListener.onFramesMatched(mBatch);
+        } finally {
+            mBatch.clear();
+        }
+    }
 }
@@ -0,0 +1,377 @@
+package hu.bugadani.serial;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parses many independent streams on a fixed number of threads.
+ * <p>
+ * Every stream id is assigned to one shard, and every shard is a single thread that owns the parsers of its
+ * streams. Producers hand bytes over through the shard's lock-free queue, so a parser is only ever touched by
+ * its own shard thread and needs no locking. Listeners of a stream's parser are called on its shard thread.
+ * <p>
+ * Note: Java has no portable way to pin threads to cores. Each shard has a dedicated, long lived thread,
+ * which lets the operating system keep it, and the parser state it owns, on the same core.
+ */
+public class ShardedParserService implements Closeable {
+
+    /**
+     * Creates the parser of a stream. Called on the stream's shard thread when the first bytes arrive.
+     */
+    public interface ParserFactory {
+        SerialParser create(long streamId);
+    }
+
+    /**
+     * Called on the shard thread when a parser or its listeners throw an exception or error.
+     * The parser of the stream is discarded, a new one is created for the next bytes.
+     * The shard keeps serving its other streams.
+     */
+    public interface ErrorHandler {
+        void onError(long streamId, Throwable exception);
+    }
+
+    private static final int TASK_BYTES = 0;
+    private static final int TASK_REMOVE = 1;
+    private static final int TASK_BARRIER = 2;
+    private static final int TASK_STOP = 3;
+
+    private static final class Task {
+        final int type;
+        final long streamId;
+        final byte[] bytes;
+        final int offset;
+        final int length;
+        final CountDownLatch latch;
+
+        Task(int type, long streamId, byte[] bytes, int offset, int length, CountDownLatch latch) {
+            this.type = type;
+            this.streamId = streamId;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.latch = latch;
+        }
+    }
+
+    /**
+     * The parsers of a shard by stream id, in an open-addressed table so looking up a stream does not box its id
+     */
+    private static final class ParserTable {
+        long[] keys = new long[16];
+        SerialParser[] parsers = new SerialParser[16];
+        int count = 0;
+
+        private static int hash(long key) {
+            //Differs from the shard hash, the streams of a shard share the low bits of that one
+            return (int) ((key * 0xC2B2AE3D27D4EB4FL) >>> 32);
+        }
+
+        SerialParser get(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; parsers[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return parsers[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long key, SerialParser parser) {
+            if ((count + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            for (; parsers[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    parsers[i] = parser;
+                    return;
+                }
+            }
+            keys[i] = key;
+            parsers[i] = parser;
+            count++;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            for (; parsers[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    break;
+                }
+            }
+            if (parsers[i] == null) {
+                return;
+            }
+            //Move the following entries of the cluster back, so no lookup stops at the hole
+            for (int j = (i + 1) & mask; parsers[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    parsers[i] = parsers[j];
+                    i = j;
+                }
+            }
+            parsers[i] = null;
+            count--;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            SerialParser[] oldParsers = parsers;
+            keys = new long[oldKeys.length * 2];
+            parsers = new SerialParser[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldParsers[j] != null) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (parsers[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    parsers[i] = oldParsers[j];
+                }
+            }
+        }
+    }
+
+    private final class Shard implements Runnable {
+        final Queue<Task> queue = new ConcurrentLinkedQueue<Task>();
+        final ParserTable parsers = new ParserTable();
+        final Thread thread;
+        volatile boolean waiting = false;
+        volatile boolean stopped = false;
+
+        Shard(int index) {
+            thread = new Thread(this, "ShardedParserService shard " + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * @return False if the shard has stopped and the task was not executed
+         */
+        boolean offer(Task task) {
+            queue.offer(task);
+            if (stopped) {
+                //The task raced with close. If the shard thread did not take it while draining, refuse it.
+                return !queue.remove(task);
+            }
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        public void run() {
+            while (true) {
+                Task task = queue.poll();
+                if (task == null) {
+                    waiting = true;
+                    //Check again, a producer may have missed the flag
+                    if (queue.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                if (task.type == TASK_STOP) {
+                    //Producers that passed the open check before close may still offer tasks.
+                    //Every task offered before this flag is visible is executed by the drain below.
+                    stopped = true;
+                    while ((task = queue.poll()) != null) {
+                        execute(task);
+                    }
+                    return;
+                }
+                execute(task);
+            }
+        }
+
+        private void execute(Task task) {
+            switch (task.type) {
+                case TASK_BYTES:
+                    SerialParser parser = parsers.get(task.streamId);
+                    try {
+                        if (parser == null) {
+                            parser = mParserFactory.create(task.streamId);
+                            parsers.put(task.streamId, parser);
+                        }
+                        parser.add(task.bytes, task.offset, task.length);
+                    } catch (Throwable e) {
+                        //Errors are caught as well, a dead shard thread would stop every stream of the shard
+                        parsers.remove(task.streamId);
+                        onError(task.streamId, e);
+                    }
+                    break;
+
+                case TASK_REMOVE:
+                    parsers.remove(task.streamId);
+                    break;
+
+                case TASK_BARRIER:
+                    task.latch.countDown();
+                    break;
+            }
+        }
+    }
+
+    private final ParserFactory mParserFactory;
+    private final Shard[] mShards;
+    private volatile ErrorHandler mErrorHandler = null;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param shardCount    The number of threads
+     * @param parserFactory Creates the parser of a stream
+     */
+    public ShardedParserService(int shardCount, ParserFactory parserFactory) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be > 0");
+        }
+        mParserFactory = parserFactory;
+        mShards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new Shard(i);
+        }
+        for (Shard shard : mShards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * @param errorHandler Handles exceptions of the parsers. By default, the shard thread's uncaught exception
+     *                     handler is called.
+     */
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        mErrorHandler = errorHandler;
+    }
+
+    /**
+     * @return The number of shards
+     */
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    /**
+     * @param streamId The stream id
+     * @return The index of the shard that parses the stream
+     */
+    public int getShard(long streamId) {
+        long h = streamId * 0x9E3779B97F4A7C15L;
+        int hash = (int) (h ^ (h >>> 32));
+        return (hash & Integer.MAX_VALUE) % mShards.length;
+    }
+
+    /**
+     * Hand bytes of a stream over to its shard.
+     * <p>
+     * The array is not copied. It must not be modified until the bytes have been processed.
+     *
+     * @param streamId The stream id
+     * @param bytes    The received bytes
+     */
+    public void submit(long streamId, byte[] bytes) {
+        submit(streamId, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Hand bytes of a stream over to its shard.
+     * <p>
+     * The array is not copied. It must not be modified until the bytes have been processed.
+     *
+     * @param streamId The stream id
+     * @param bytes    The received bytes
+     * @param offset   The position of the first byte
+     * @param length   The number of bytes
+     */
+    public void submit(long streamId, byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IllegalArgumentException("offset + length > bytes.length");
+        }
+        checkOpen();
+        if (!mShards[getShard(streamId)].offer(new Task(TASK_BYTES, streamId, bytes, offset, length, null))) {
+            throw new IllegalStateException("Service is closed");
+        }
+    }
+
+    /**
+     * Discard the parser of a stream, e.g. when the connection is closed.
+     *
+     * @param streamId The stream id
+     */
+    public void removeStream(long streamId) {
+        checkOpen();
+        if (!mShards[getShard(streamId)].offer(new Task(TASK_REMOVE, streamId, null, 0, 0, null))) {
+            throw new IllegalStateException("Service is closed");
+        }
+    }
+
+    /**
+     * Wait until every shard has processed the bytes submitted before this call.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of timeout
+     * @return False if the timeout elapsed
+     * @throws InterruptedException
+     */
+    public boolean awaitProcessed(long timeout, TimeUnit unit) throws InterruptedException {
+        checkOpen();
+        CountDownLatch latch = new CountDownLatch(mShards.length);
+        for (Shard shard : mShards) {
+            if (!shard.offer(new Task(TASK_BARRIER, 0, null, 0, 0, latch))) {
+                throw new IllegalStateException("Service is closed");
+            }
+        }
+        return latch.await(timeout, unit);
+    }
+
+    /**
+     * Process the already submitted bytes and stop the shard threads.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        for (Shard shard : mShards) {
+            shard.offer(new Task(TASK_STOP, 0, null, 0, 0, null));
+        }
+        boolean interrupted = false;
+        for (Shard shard : mShards) {
+            while (true) {
+                try {
+                    shard.thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("Service is closed");
+        }
+    }
+
+    private void onError(long streamId, Throwable e) {
+        ErrorHandler handler = mErrorHandler;
+        if (handler != null) {
+            handler.onError(streamId, e);
+        } else {
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package hu.bugadani.serial;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Records a raw byte stream with chunk timestamps into a block compressed capture file.
+ * <p>
+ * Chunks are collected into blocks on the recording thread. Full blocks are compressed and written
+ * by a background thread. A capture can be replayed with StreamReplayer.
+ * <p>
+ * File format (big endian):
+ * <pre>
+ * header: int magic, int version, long start time in milliseconds since the epoch
+ * block:  int uncompressed length, int compressed length, deflated chunks
+ * chunk:  long nanoseconds since the start of the recording, int length, bytes
+ * </pre>
+ * <p>
+ * A single byte recorded within SINGLE_BYTE_WINDOW_NANOS of the previous chunk's timestamp is appended to that
+ * chunk, so byte by byte input does not cost a chunk header per byte. Its replay time is off by at most the window.
+ * <p>
+ * Note: this class is not thread safe, record should be called from one thread at a time.
+ */
+public class StreamRecorder implements Closeable {
+
+    static final int MAGIC = 0x53504350; //"SPCP"
+    static final int VERSION = 1;
+    static final int CHUNK_HEADER_LENGTH = 12;
+    static final long SINGLE_BYTE_WINDOW_NANOS = 100000;
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final int BLOCK_COUNT = 4;
+
+    private static class Block {
+        byte[] data;
+        int length = 0;
+
+        Block(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private static final Block END_OF_STREAM = new Block(0);
+
+    private final int mBlockSize;
+    private final long mStartNanos;
+    private final DataOutputStream mOutput;
+    private final BlockingQueue<Block> mFullBlocks = new ArrayBlockingQueue<Block>(BLOCK_COUNT);
+    private final BlockingQueue<Block> mFreeBlocks = new ArrayBlockingQueue<Block>(BLOCK_COUNT);
+    private final Thread mWriterThread;
+
+    private Block mCurrentBlock;
+    private int mLastChunk = -1;
+    private long mLastChunkTimestamp;
+    private volatile IOException mFailure = null;
+    private boolean mClosed = false;
+
+    /**
+     * Create a recorder with the default block size
+     *
+     * @param file The capture file, will be overwritten
+     * @throws IOException
+     */
+    public StreamRecorder(File file) throws IOException {
+        this(file, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param file      The capture file, will be overwritten
+     * @param blockSize The number of uncompressed bytes collected before a block is compressed
+     * @throws IOException
+     */
+    public StreamRecorder(File file, int blockSize) throws IOException {
+        if (blockSize <= CHUNK_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Block size must be > " + CHUNK_HEADER_LENGTH);
+        }
+        mBlockSize = blockSize;
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        mOutput.writeInt(MAGIC);
+        mOutput.writeInt(VERSION);
+        mOutput.writeLong(System.currentTimeMillis());
+        mStartNanos = System.nanoTime();
+
+        for (int i = 0; i < BLOCK_COUNT - 1; i++) {
+            mFreeBlocks.add(new Block(blockSize));
+        }
+        mCurrentBlock = new Block(blockSize);
+
+        mWriterThread = new Thread(new Runnable() {
+            public void run() {
+                writeBlocks();
+            }
+        }, "StreamRecorder writer");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Record a single byte
+     *
+     * @param b
+     */
+    public void record(byte b) {
+        checkOpen();
+        long timestamp = System.nanoTime() - mStartNanos;
+
+        Block block = mCurrentBlock;
+        if (mLastChunk >= 0 && timestamp - mLastChunkTimestamp < SINGLE_BYTE_WINDOW_NANOS) {
+            //Extend the previous chunk, the block always has room for one more byte
+            byte[] data = block.data;
+            int lengthPos = mLastChunk + 8;
+            int length = ((data[lengthPos] & 0xFF) << 24) | ((data[lengthPos + 1] & 0xFF) << 16)
+                    | ((data[lengthPos + 2] & 0xFF) << 8) | (data[lengthPos + 3] & 0xFF);
+            writeInt(data, lengthPos, length + 1);
+            data[block.length++] = b;
+        } else {
+            int pos = beginChunk(timestamp, 1);
+            block = mCurrentBlock;
+            block.data[pos] = b;
+            block.length = pos + 1;
+        }
+
+        if (block.length >= mBlockSize) {
+            submit(block);
+        }
+    }
+
+    /**
+     * Record a chunk of bytes
+     *
+     * @param bytes
+     */
+    public void record(byte[] bytes) {
+        record(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Record a chunk of bytes
+     *
+     * @param bytes  The source array
+     * @param offset The offset of the first byte to record
+     * @param length The number of bytes to record
+     */
+    public void record(byte[] bytes, int offset, int length) {
+        checkOpen();
+        if (length == 0) {
+            return;
+        }
+
+        long timestamp = System.nanoTime() - mStartNanos;
+        int pos = beginChunk(timestamp, length);
+        Block block = mCurrentBlock;
+        System.arraycopy(bytes, offset, block.data, pos, length);
+        block.length = pos + length;
+
+        if (block.length >= mBlockSize) {
+            submit(block);
+        }
+    }
+
+    /**
+     * Write a chunk header into the current block, which may be replaced to make room
+     *
+     * @return The position of the chunk data in the current block
+     */
+    private int beginChunk(long timestamp, int length) {
+        Block block = mCurrentBlock;
+        int required = CHUNK_HEADER_LENGTH + length;
+        if (block.length > 0 && block.length + required > block.data.length) {
+            submit(block);
+            block = mCurrentBlock;
+        }
+        if (required > block.data.length) {
+            //A single chunk larger than a block gets a block of its own
+            block.data = new byte[required];
+        }
+
+        byte[] data = block.data;
+        int pos = block.length;
+        writeInt(data, pos, (int) (timestamp >>> 32));
+        writeInt(data, pos + 4, (int) timestamp);
+        writeInt(data, pos + 8, length);
+
+        mLastChunk = pos;
+        mLastChunkTimestamp = timestamp;
+        return pos + CHUNK_HEADER_LENGTH;
+    }
+
+    private static void writeInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Hand the collected chunks over to the writer thread and wait until they are written.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (mCurrentBlock.length > 0) {
+            submit(mCurrentBlock);
+        }
+        //Every block is back in the pool once the writer is idle
+        synchronized (mFreeBlocks) {
+            while (mFreeBlocks.size() < BLOCK_COUNT - 1 && mFailure == null) {
+                try {
+                    mFreeBlocks.wait(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+        mOutput.flush();
+    }
+
+    /**
+     * Write the remaining chunks and close the capture file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mCurrentBlock.length > 0 && mFailure == null) {
+                submit(mCurrentBlock);
+            }
+            mFullBlocks.put(END_OF_STREAM);
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            mOutput.close();
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("Recorder is closed");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        if (mFailure != null) {
+            throw new IllegalStateException("Recording failed", mFailure);
+        }
+    }
+
+    private void submit(Block block) {
+        //The next chunk starts in a new block
+        mLastChunk = -1;
+        try {
+            mFullBlocks.put(block);
+            mCurrentBlock = mFreeBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while recording", e);
+        }
+    }
+
+    private void writeBlocks() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] compressed = new byte[mBlockSize];
+        try {
+            while (true) {
+                Block block = mFullBlocks.take();
+                if (block == END_OF_STREAM) {
+                    break;
+                }
+                try {
+                    if (mFailure == null) {
+                        compressed = writeBlock(deflater, block, compressed);
+                    }
+                } catch (IOException e) {
+                    mFailure = e;
+                } finally {
+                    block.length = 0;
+                    synchronized (mFreeBlocks) {
+                        mFreeBlocks.add(block);
+                        mFreeBlocks.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            mFailure = new InterruptedIOException();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] writeBlock(Deflater deflater, Block block, byte[] compressed) throws IOException {
+        deflater.reset();
+        deflater.setInput(block.data, 0, block.length);
+        deflater.finish();
+
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, compressedLength);
+                compressed = grown;
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        mOutput.writeInt(block.length);
+        mOutput.writeInt(compressedLength);
+        mOutput.write(compressed, 0, compressedLength);
+
+        return compressed;
+    }
+}
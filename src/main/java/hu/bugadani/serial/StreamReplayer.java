@@ -0,0 +1,196 @@
+package hu.bugadani.serial;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a capture file written by StreamRecorder and feeds the recorded chunks into a SerialParser.
+ */
+public class StreamReplayer implements Closeable {
+
+    private final DataInputStream mInput;
+    private final long mStartTime;
+    private final Inflater mInflater = new Inflater();
+
+    private byte[] mCompressed = new byte[0];
+    private byte[] mBlock = new byte[0];
+    private int mBlockLength = 0;
+    private int mBlockPosition = 0;
+
+    private long mChunkTimestamp;
+    private int mChunkOffset;
+    private int mChunkLength;
+
+    /**
+     * @param file The capture file
+     * @throws IOException if the file is not a capture file or can not be read
+     */
+    public StreamReplayer(File file) throws IOException {
+        mInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (mInput.readInt() != StreamRecorder.MAGIC) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            int version = mInput.readInt();
+            if (version != StreamRecorder.VERSION) {
+                throw new IOException("Unsupported capture version: " + version);
+            }
+            mStartTime = mInput.readLong();
+        } catch (IOException e) {
+            mInput.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The wall clock time when the recording was started, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Advance to the next recorded chunk.
+     *
+     * @return False if the end of the capture was reached
+     * @throws IOException
+     */
+    public boolean nextChunk() throws IOException {
+        if (mBlockPosition == mBlockLength && !readBlock()) {
+            return false;
+        }
+        if (mBlockLength - mBlockPosition < StreamRecorder.CHUNK_HEADER_LENGTH) {
+            throw new IOException("Corrupted capture block");
+        }
+
+        byte[] block = mBlock;
+        int pos = mBlockPosition;
+        long timestamp = 0;
+        for (int i = 0; i < 8; i++) {
+            timestamp = (timestamp << 8) | (block[pos++] & 0xFF);
+        }
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            length = (length << 8) | (block[pos++] & 0xFF);
+        }
+        if (length < 0 || length > mBlockLength - pos) {
+            throw new IOException("Corrupted capture block");
+        }
+
+        mChunkTimestamp = timestamp;
+        mChunkOffset = pos;
+        mChunkLength = length;
+        mBlockPosition = pos + length;
+
+        return true;
+    }
+
+    /**
+     * @return The time the current chunk was recorded, in nanoseconds since the start of the recording
+     */
+    public long getChunkTimestamp() {
+        return mChunkTimestamp;
+    }
+
+    /**
+     * @return A copy of the current chunk
+     */
+    public byte[] getChunk() {
+        byte[] chunk = new byte[mChunkLength];
+        System.arraycopy(mBlock, mChunkOffset, chunk, 0, mChunkLength);
+        return chunk;
+    }
+
+    /**
+     * Feed the remaining chunks into a parser.
+     *
+     * @param parser   The parser
+     * @param realTime True to wait between chunks like they were recorded, false to replay as fast as possible
+     * @return The number of replayed bytes
+     * @throws IOException
+     */
+    public long replay(SerialParser parser, boolean realTime) throws IOException {
+        long replayed = 0;
+        long replayStart = System.nanoTime();
+        long firstTimestamp = -1;
+        while (nextChunk()) {
+            if (realTime) {
+                if (firstTimestamp < 0) {
+                    firstTimestamp = mChunkTimestamp;
+                }
+                waitUntil(replayStart + mChunkTimestamp - firstTimestamp);
+            }
+            parser.add(mBlock, mChunkOffset, mChunkLength);
+            replayed += mChunkLength;
+        }
+        return replayed;
+    }
+
+    public void close() throws IOException {
+        mInflater.end();
+        mInput.close();
+    }
+
+    private static void waitUntil(long nanoTime) throws IOException {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private boolean readBlock() throws IOException {
+        int uncompressedLength;
+        try {
+            uncompressedLength = mInput.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        int compressedLength = mInput.readInt();
+        if (uncompressedLength <= 0 || compressedLength <= 0) {
+            throw new IOException("Corrupted capture block header");
+        }
+
+        if (mCompressed.length < compressedLength) {
+            mCompressed = new byte[compressedLength];
+        }
+        if (mBlock.length < uncompressedLength) {
+            mBlock = new byte[uncompressedLength];
+        }
+        mInput.readFully(mCompressed, 0, compressedLength);
+
+        mInflater.reset();
+        mInflater.setInput(mCompressed, 0, compressedLength);
+        try {
+            int length = 0;
+            while (length < uncompressedLength && !mInflater.finished()) {
+                int inflated = mInflater.inflate(mBlock, length, uncompressedLength - length);
+                if (inflated == 0 && mInflater.needsInput()) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != uncompressedLength) {
+                throw new IOException("Corrupted capture block");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted capture block", e);
+        }
+
+        mBlockLength = uncompressedLength;
+        mBlockPosition = 0;
+        return true;
+    }
+}
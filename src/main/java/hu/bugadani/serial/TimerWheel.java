@@ -0,0 +1,239 @@
+package hu.bugadani.serial;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel that can be shared by many parsers.
+ * <p>
+ * The wheel does not own a thread. Expired timeouts are run by advance(), which should be called
+ * periodically from the thread that also feeds the parsers using the wheel.
+ * <p>
+ * Note: this class is not thread safe.
+ */
+public class TimerWheel {
+
+    /**
+     * The action that is run when a timeout expires
+     */
+    public interface Task {
+        void run(Timeout timeout);
+    }
+
+    /**
+     * A scheduled task
+     */
+    public static final class Timeout {
+        private final TimerWheel mWheel;
+        private final Task mTask;
+        private final long mDeadline;
+        private long mRemainingRounds;
+        private Bucket mBucket = null;
+        private Timeout mPrev = null;
+        private Timeout mNext = null;
+        private Timeout mNextExpired = null;
+        private boolean mCancelled = false;
+
+        private Timeout(TimerWheel wheel, Task task, long deadline) {
+            mWheel = wheel;
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * @return The time when the timeout expires, see Clock.nanoTime()
+         */
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        /**
+         * @return True if the timeout is waiting to expire
+         */
+        public boolean isPending() {
+            return mBucket != null;
+        }
+
+        /**
+         * Remove the timeout from the wheel without running its task
+         */
+        public void cancel() {
+            mCancelled = true;
+            if (mBucket != null) {
+                mBucket.remove(this);
+                mWheel.mPendingCount--;
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout mHead = null;
+        private Timeout mTail = null;
+
+        void add(Timeout timeout) {
+            timeout.mBucket = this;
+            timeout.mPrev = mTail;
+            if (mTail == null) {
+                mHead = timeout;
+            } else {
+                mTail.mNext = timeout;
+            }
+            mTail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.mPrev == null) {
+                mHead = timeout.mNext;
+            } else {
+                timeout.mPrev.mNext = timeout.mNext;
+            }
+            if (timeout.mNext == null) {
+                mTail = timeout.mPrev;
+            } else {
+                timeout.mNext.mPrev = timeout.mPrev;
+            }
+            timeout.mBucket = null;
+            timeout.mPrev = null;
+            timeout.mNext = null;
+        }
+    }
+
+    private final Clock mClock;
+    private final long mTickNanos;
+    private final long mStartTime;
+    private final Bucket[] mBuckets;
+    private final int mMask;
+
+    /**
+     * The next tick to be processed
+     */
+    private long mTick = 0;
+    private boolean mExpiring = false;
+    private int mPendingCount = 0;
+
+    /**
+     * Create a wheel with 1 millisecond ticks and 512 buckets, using the system clock
+     */
+    public TimerWheel() {
+        this(Clock.SYSTEM, 1, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @param clock        The time source
+     * @param tickDuration The resolution of the wheel
+     * @param unit         The unit of tickDuration
+     * @param bucketCount  The number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(Clock clock, long tickDuration, TimeUnit unit, int bucketCount) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be > 0");
+        }
+        if (bucketCount <= 0 || bucketCount > (1 << 30)) {
+            throw new IllegalArgumentException("Bucket count must be in range 1.." + (1 << 30));
+        }
+        int size = Integer.highestOneBit(bucketCount);
+        if (size < bucketCount) {
+            size <<= 1;
+        }
+
+        mClock = clock;
+        mTickNanos = unit.toNanos(tickDuration);
+        mStartTime = clock.nanoTime();
+        mBuckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mBuckets[i] = new Bucket();
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * @return The clock of the wheel
+     */
+    public Clock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @return The number of timeouts waiting to expire
+     */
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task  The task to run
+     * @param delay The time after which the task should run
+     * @param unit  The unit of delay
+     * @return A handle that can be used to cancel the task
+     */
+    public Timeout schedule(Task task, long delay, TimeUnit unit) {
+        long deadline = mClock.nanoTime() + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(this, task, deadline);
+
+        //Tasks scheduled by an expiring task can not go into the bucket that is being processed
+        long firstTick = mExpiring ? mTick + 1 : mTick;
+        long deadlineTick = Math.max(firstTick, (deadline - mStartTime + mTickNanos - 1) / mTickNanos);
+        timeout.mRemainingRounds = (deadlineTick - firstTick) / mBuckets.length;
+        mBuckets[(int) (deadlineTick & mMask)].add(timeout);
+        mPendingCount++;
+
+        return timeout;
+    }
+
+    /**
+     * Run the tasks of every expired timeout.
+     *
+     * @return The number of tasks that were run
+     */
+    public int advance() {
+        long currentTick = (mClock.nanoTime() - mStartTime) / mTickNanos;
+        int expired = 0;
+        mExpiring = true;
+        try {
+            while (mTick <= currentTick) {
+                expired += expireBucket(mBuckets[(int) (mTick & mMask)]);
+                mTick++;
+            }
+        } finally {
+            mExpiring = false;
+        }
+        return expired;
+    }
+
+    private int expireBucket(Bucket bucket) {
+        //Collect the expired timeouts first, so the tasks are free to schedule or cancel timeouts
+        Timeout first = null;
+        Timeout last = null;
+        Timeout timeout = bucket.mHead;
+        while (timeout != null) {
+            Timeout next = timeout.mNext;
+            if (timeout.mRemainingRounds <= 0) {
+                bucket.remove(timeout);
+                mPendingCount--;
+                if (last == null) {
+                    first = timeout;
+                } else {
+                    last.mNextExpired = timeout;
+                }
+                last = timeout;
+            } else {
+                timeout.mRemainingRounds--;
+            }
+            timeout = next;
+        }
+
+        int expired = 0;
+        timeout = first;
+        while (timeout != null) {
+            Timeout next = timeout.mNextExpired;
+            timeout.mNextExpired = null;
+            if (!timeout.mCancelled) {
+                expired++;
+                timeout.mTask.run(timeout);
+            }
+            timeout = next;
+        }
+        return expired;
+    }
+}
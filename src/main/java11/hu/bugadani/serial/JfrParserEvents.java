@@ -0,0 +1,156 @@
+package hu.bugadani.serial;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Records parser internals as JDK Flight Recorder events.
+ * <p>
+ * Thresholds and enabled states can be changed in the recording settings, e.g.
+ * {@code hu.bugadani.serial.SlowListener#threshold=5 ms}.
+ */
+class JfrParserEvents extends ParserEvents {
+
+    @Name("hu.bugadani.serial.FrameMatched")
+    @Label("Frame Matched")
+    @Category("SerialParser")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class FrameMatchedEvent extends Event {
+        @Label("Frame Id")
+        int frameId;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+    }
+
+    @Name("hu.bugadani.serial.Resync")
+    @Label("Resynchronization")
+    @Description("Bytes dropped between two frames")
+    @Category("SerialParser")
+    @Threshold("0 ms")
+    @StackTrace(false)
+    static final class ResyncEvent extends Event {
+        @Label("Dropped Bytes")
+        @DataAmount
+        long droppedBytes;
+    }
+
+    @Name("hu.bugadani.serial.BufferFull")
+    @Label("Buffer Full")
+    @Description("A byte was lost because the buffer was full")
+    @Category("SerialParser")
+    @StackTrace(false)
+    static final class BufferFullEvent extends Event {
+        @Label("Capacity")
+        @DataAmount
+        int capacity;
+    }
+
+    @Name("hu.bugadani.serial.SlowListener")
+    @Label("Slow Listener")
+    @Description("The listeners of a frame took longer than the threshold")
+    @Category("SerialParser")
+    @Threshold("1 ms")
+    static final class SlowListenerEvent extends Event {
+        @Label("Frame Id")
+        int frameId;
+    }
+
+    private volatile boolean mRecording = false;
+
+    JfrParserEvents() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                updateRecordingState();
+            }
+        });
+        if (FlightRecorder.isInitialized()) {
+            updateRecordingState();
+        }
+    }
+
+    private void updateRecordingState() {
+        boolean recording = false;
+        for (Recording r : FlightRecorder.getFlightRecorder().getRecordings()) {
+            if (r.getState() == RecordingState.RUNNING) {
+                recording = true;
+            }
+        }
+        mRecording = recording;
+    }
+
+    @Override
+    boolean isEnabled() {
+        return mRecording;
+    }
+
+    @Override
+    void frameMatched(int frameId, int length) {
+        FrameMatchedEvent event = new FrameMatchedEvent();
+        if (event.isEnabled()) {
+            event.frameId = frameId;
+            event.length = length;
+            event.commit();
+        }
+    }
+
+    @Override
+    Object resyncStarted() {
+        ResyncEvent event = new ResyncEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void resynced(Object token, long droppedBytes) {
+        if (token != null) {
+            ResyncEvent event = (ResyncEvent) token;
+            event.droppedBytes = droppedBytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    void bufferFull(int capacity) {
+        BufferFullEvent event = new BufferFullEvent();
+        if (event.isEnabled()) {
+            event.capacity = capacity;
+            event.commit();
+        }
+    }
+
+    @Override
+    Object listenerStarted(int frameId) {
+        SlowListenerEvent event = new SlowListenerEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.frameId = frameId;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void listenerFinished(Object token) {
+        if (token != null) {
+            ((SlowListenerEvent) token).commit();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.Test;
 
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 import static org.junit.Assert.*;
 
@@ -242,4 +243,38 @@ public class ByteRingBufferTest {
         buffer.remove(5);
         testSetCapacityShrinkingBelowSize();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCopyToWrapping() {
+        buffer.add("abcdefgh".getBytes());
+        buffer.remove(6);
+        buffer.add("ijklmn".getBytes());
+
+        byte[] dest = new byte[6];
+        buffer.copyTo(1, dest, 1, 5);
+
+        assertEquals(8, buffer.getSize());
+        assertArrayEquals(new byte[]{0, 'h', 'i', 'j', 'k', 'l'}, dest);
+    }
+
+    @Test
+    public void testCopyToByteBufferWrapping() {
+        buffer.add("abcdefgh".getBytes());
+        buffer.remove(6);
+        buffer.add("ijklmn".getBytes());
+
+        ByteBuffer dest = ByteBuffer.allocate(6);
+        dest.position(1);
+        buffer.copyTo(1, dest, 5);
+
+        assertEquals(6, dest.position());
+        assertEquals(8, buffer.getSize());
+        assertArrayEquals(new byte[]{0, 'h', 'i', 'j', 'k', 'l'}, dest.array());
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void testCopyToUnderflow() {
+        buffer.add("abc".getBytes());
+        buffer.copyTo(1, new byte[3], 0, 3);
+    }
+}
@@ -0,0 +1,146 @@
+package hu.bugadani.serial;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConflatingDispatcherTest {
+
+    private final Map<Long, String> latest = new HashMap<Long, String>();
+
+    private final ConflatingDispatcher.Consumer consumer = new ConflatingDispatcher.Consumer() {
+        public void onLatest(long key, SerialParser.FrameDefinition frame, byte[] data, int length) {
+            assertNull(latest.put(key, frame.getFrameId() + ":" + new String(data, 0, length)));
+        }
+    };
+
+    @Test
+    public void testLatestValueWins() {
+        ConflatingDispatcher dispatcher = new ConflatingDispatcher();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setTerminatingByte((byte) ';')
+                                .addViewListener(dispatcher)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(2, "-")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(dispatcher)
+                )
+                .build();
+
+        parser.add("+1;-a;+22;+333;-b;".getBytes());
+        assertEquals(5, dispatcher.getReceivedCount());
+        assertEquals(3, dispatcher.getConflatedCount());
+
+        assertEquals(2, dispatcher.drain(consumer));
+        assertEquals("1:333", latest.get(1L));
+        assertEquals("2:b", latest.get(2L));
+
+        latest.clear();
+        assertEquals(0, dispatcher.drain(consumer));
+
+        parser.add("+4;".getBytes());
+        assertEquals(1, dispatcher.drain(consumer));
+        assertEquals("1:4", latest.get(1L));
+    }
+
+    @Test
+    public void testKeyExtractor() {
+        ConflatingDispatcher dispatcher = new ConflatingDispatcher(new ConflatingDispatcher.KeyExtractor() {
+            public long getKey(FrameView frame) {
+                return frame.getUnsignedByte(0);
+            }
+        });
+        SerialParser parser = new SerialParser
+                .Builder()
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "$")
+                                .setDataLength(2)
+                                .addViewListener(dispatcher)
+                )
+                .build();
+
+        for (int i = 0; i < 1000; i++) {
+            parser.add(new byte[]{'$', (byte) (i % 100), (byte) i});
+        }
+
+        assertNull(dispatcher.take(100));
+        assertArrayEquals(new byte[]{7, (byte) 907}, dispatcher.take(7));
+        assertNull(dispatcher.take(7));
+        assertEquals(99, dispatcher.drain(consumer));
+        assertEquals(99, latest.size());
+    }
+
+    @Test
+    public void testDrainedFrameMatchesData() {
+        final ConflatingDispatcher dispatcher = new ConflatingDispatcher(new ConflatingDispatcher.KeyExtractor() {
+            public long getKey(FrameView frame) {
+                return frame.getUnsignedByte(0);
+            }
+        });
+        final SerialParser parser = new SerialParser
+                .Builder()
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "+").setDataLength(2).addViewListener(dispatcher))
+                .addFrameDefinition(new SerialParser.FrameDefinition(2, "-").setDataLength(2).addViewListener(dispatcher))
+                .build();
+
+        parser.add("+1a+2b".getBytes());
+        //The parser overwrites the second slot with a frame of another definition while the first one is consumed
+        assertEquals(2, dispatcher.drain(new ConflatingDispatcher.Consumer() {
+            public void onLatest(long key, SerialParser.FrameDefinition frame, byte[] data, int length) {
+                if (key == '1') {
+                    parser.add("-2c".getBytes());
+                }
+                consumer.onLatest(key, frame, data, length);
+            }
+        }));
+        assertEquals("1:2b", latest.get((long) '2'));
+
+        latest.clear();
+        assertEquals(1, dispatcher.drain(consumer));
+        assertEquals("2:2c", latest.get((long) '2'));
+    }
+
+    @Test
+    public void testArrayListenerFromManyParsers() throws Exception {
+        final ConflatingDispatcher dispatcher = new ConflatingDispatcher(new ConflatingDispatcher.KeyExtractor() {
+            public long getKey(FrameView frame) {
+                return frame.getUnsignedByte(0);
+            }
+        });
+        final SerialParser.FrameDefinition frame = new SerialParser.FrameDefinition(1, "+");
+
+        //Every parser thread reports through the same dispatcher, the key must always belong to the copied data
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final byte[] data = new byte[t + 1];
+            Arrays.fill(data, (byte) ('a' + t));
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        dispatcher.onFrameMatched(frame, data);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4 * 100000, dispatcher.getReceivedCount());
+        assertEquals(4, dispatcher.drain(consumer));
+        assertEquals("1:a", latest.get((long) 'a'));
+        assertEquals("1:bb", latest.get((long) 'b'));
+        assertEquals("1:ccc", latest.get((long) 'c'));
+        assertEquals("1:dddd", latest.get((long) 'd'));
+    }
+}
@@ -0,0 +1,151 @@
+package hu.bugadani.serial;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class CollectingVisitor implements FrameJournal.RecordVisitor {
+        final List<String> records = new ArrayList<String>();
+
+        public void onRecord(int frameId, long timestamp, byte[] data, int length) {
+            records.add(timestamp + ":" + new String(data, 0, length));
+        }
+    }
+
+    private static ByteView bytes(String data) {
+        byte[] array = data.getBytes();
+        return new ArrayByteView().set(array, 0, array.length);
+    }
+
+    private static void appendFrames(FrameJournal journal) {
+        for (int i = 0; i < 200; i++) {
+            journal.append(i % 2 == 0 ? 7 : 8, i, bytes("f" + i));
+        }
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        FrameJournal journal = new FrameJournal(folder.newFolder(), 512);
+        try {
+            appendFrames(journal);
+            assertEquals(200, journal.getRecordCount());
+            assertTrue(journal.getSegmentCount() > 1);
+
+            CollectingVisitor visitor = new CollectingVisitor();
+            assertEquals(3, journal.query(7, 150, 155, visitor));
+            assertEquals(Arrays.asList("150:f150", "152:f152", "154:f154"), visitor.records);
+
+            assertEquals(100, journal.query(8, Long.MIN_VALUE, Long.MAX_VALUE, new CollectingVisitor()));
+            assertEquals(0, journal.query(9, Long.MIN_VALUE, Long.MAX_VALUE, new CollectingVisitor()));
+            assertEquals(0, journal.query(7, 300, 400, new CollectingVisitor()));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testManyFrameIds() throws Exception {
+        FrameJournal journal = new FrameJournal(folder.newFolder(), 4096);
+        try {
+            //Ids that only differ in the high bits, and negative ones, must get their own index
+            for (int i = 0; i < 100; i++) {
+                journal.append(i << 16, i, bytes("a" + i));
+                journal.append(-i - 1, i, bytes("b" + i));
+            }
+            for (int i = 0; i < 100; i++) {
+                CollectingVisitor visitor = new CollectingVisitor();
+                assertEquals(1, journal.query(i << 16, Long.MIN_VALUE, Long.MAX_VALUE, visitor));
+                assertEquals(1, journal.query(-i - 1, Long.MIN_VALUE, Long.MAX_VALUE, visitor));
+                assertEquals(Arrays.asList(i + ":a" + i, i + ":b" + i), visitor.records);
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        File directory = folder.newFolder();
+        FrameJournal journal = new FrameJournal(directory, 512);
+        appendFrames(journal);
+        journal.close();
+
+        journal = new FrameJournal(directory, 512);
+        try {
+            assertEquals(200, journal.getRecordCount());
+            journal.append(7, 200, bytes("new"));
+
+            CollectingVisitor visitor = new CollectingVisitor();
+            assertEquals(2, journal.query(7, 198, 1000, visitor));
+            assertEquals(Arrays.asList("198:f198", "200:new"), visitor.records);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testParserSink() throws Exception {
+        FrameJournal journal = new FrameJournal(folder.newFolder(), 4096);
+        try {
+            SerialParser parser = new SerialParser
+                    .Builder()
+                    .setBufferSize(16)
+                    .addFrameDefinition(
+                            new SerialParser.FrameDefinition(3, "+")
+                                    .setTerminatingByte((byte) ';')
+                                    .addViewListener(journal)
+                    )
+                    .build();
+            parser.add("+abc;+de;".getBytes());
+
+            final List<String> data = new ArrayList<String>();
+            journal.query(3, Long.MIN_VALUE, Long.MAX_VALUE, new FrameJournal.RecordVisitor() {
+                public void onRecord(int frameId, long timestamp, byte[] bytes, int length) {
+                    data.add(new String(bytes, 0, length));
+                }
+            });
+            assertEquals(Arrays.asList("abc", "de"), data);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testTimestampsDoNotDecrease() throws Exception {
+        FrameJournal journal = new FrameJournal(folder.newFolder(), 4096);
+        try {
+            journal.append(1, 100, bytes("a"));
+            //e.g. the wall clock was set back
+            journal.append(1, 50, bytes("b"));
+            journal.append(1, 101, bytes("c"));
+
+            CollectingVisitor visitor = new CollectingVisitor();
+            assertEquals(3, journal.query(1, 100, 101, visitor));
+            assertEquals(Arrays.asList("100:a", "100:b", "101:c"), visitor.records);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordTooLarge() throws Exception {
+        FrameJournal journal = new FrameJournal(folder.newFolder(), 64);
+        try {
+            journal.append(1, 0, bytes("0123456789012345678901234567890"));
+        } finally {
+            journal.close();
+        }
+    }
+}
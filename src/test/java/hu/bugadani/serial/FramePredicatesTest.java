@@ -0,0 +1,83 @@
+package hu.bugadani.serial;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FramePredicatesTest {
+
+    private final List<String> frames = new ArrayList<String>();
+
+    private final SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+        public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+            frames.add(new String(data));
+        }
+    };
+
+    private SerialParser createParser(SerialParser.FrameDefinition frameDefinition) {
+        return new SerialParser
+                .Builder()
+                .setBufferSize(16)
+                .addFrameDefinition(frameDefinition.addListener(listener))
+                .build();
+    }
+
+    @Test
+    public void testByteIn() throws Exception {
+        SerialParser.FrameDefinition fd = new SerialParser.FrameDefinition(1, "+")
+                .setTerminatingByte((byte) ';')
+                .setPredicate(FramePredicates.byteIn(1, 'a', 'c', 0xFF));
+        SerialParser parser = createParser(fd);
+
+        parser.add("+1a;+1b;+1c;+;+2".getBytes());
+        parser.add(new byte[]{(byte) 0xFF, ';'});
+        assertEquals(Arrays.asList("1a", "1c", new String(new byte[]{'2', (byte) 0xFF})), frames);
+        //"+1b;" and the empty frame
+        assertEquals(2, fd.getRejectedCount());
+    }
+
+    @Test
+    public void testByteNotInAndAllOf() throws Exception {
+        SerialParser.FrameDefinition fd = new SerialParser.FrameDefinition(1, "+")
+                .setTerminatingByte((byte) ';')
+                .setPredicate(FramePredicates.allOf(
+                        FramePredicates.byteNotIn(0, 'x'),
+                        FramePredicates.byteIn(1, '1', '2')
+                ));
+        SerialParser parser = createParser(fd);
+
+        parser.add("+a1;+x1;+a3;+b2;".getBytes());
+        assertEquals(Arrays.asList("a1", "b2"), frames);
+        assertEquals(2, fd.getRejectedCount());
+    }
+
+    @Test
+    public void testRejectedFramesAreNotBatched() throws Exception {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBatchListener(new SerialParser.FrameBatchListener() {
+                    public void onFramesMatched(FrameBatch batch) {
+                        batchSizes.add(batch.size());
+                    }
+                })
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "#")
+                                .setDataLength(2)
+                                .setPredicate(FramePredicates.byteIn(0, 7))
+                )
+                .build();
+
+        parser.add(new byte[]{'#', 7, 1, '#', 8, 1, '#', 7, 2});
+        assertEquals(Arrays.asList(2), batchSizes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidValue() throws Exception {
+        FramePredicates.byteIn(0, 256);
+    }
+}
@@ -0,0 +1,113 @@
+package hu.bugadani.serial;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class FrameViewTest {
+
+    private int called = 0;
+
+    private static byte[] frame() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 15);
+        buffer.put((byte) '$');
+        buffer.put((byte) 0xFE);                               //int8 -2, uint8 254
+        buffer.order(ByteOrder.LITTLE_ENDIAN).putShort((short) 0xFFFE); //uint16 LE 65534
+        buffer.order(ByteOrder.BIG_ENDIAN).putInt(0xFFFFFFFF);  //uint32 4294967295
+        buffer.order(ByteOrder.LITTLE_ENDIAN).putFloat(1.5f);
+        buffer.order(ByteOrder.BIG_ENDIAN).putInt(-7);
+        return buffer.array();
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        final SerialParser.FrameDefinition definition = new SerialParser.FrameDefinition(1, '$')
+                .setDataLength(15)
+                .addField("signed", 0, FrameField.Type.INT8)
+                .addField("unsigned", 0, FrameField.Type.UINT8)
+                .addField("u16", 1, FrameField.Type.UINT16, ByteOrder.LITTLE_ENDIAN)
+                .addField("u32", 3, FrameField.Type.UINT32)
+                .addField("f32", 7, FrameField.Type.FLOAT32, ByteOrder.LITTLE_ENDIAN)
+                .addField("i32", 11, FrameField.Type.INT32);
+        final FrameField u16 = definition.getField("u16");
+
+        definition.addViewListener(new SerialParser.FrameViewListener() {
+            public void onFrameMatched(FrameView frame) {
+                assertSame(definition, frame.getFrameDefinition());
+                assertEquals(15, frame.getSize());
+                assertEquals(-2, frame.getLong("signed"));
+                assertEquals(254, frame.getLong("unsigned"));
+                assertEquals(65534, frame.getInt(u16));
+                assertEquals(4294967295L, frame.getLong("u32"));
+                assertEquals(1.5, frame.getDouble("f32"), 0);
+                assertEquals(-7, frame.getInt(definition.getField("i32")));
+                assertEquals(-7.0, frame.getDouble("i32"), 0);
+                assertEquals((short) 0xFEFE, frame.getShort(0, ByteOrder.BIG_ENDIAN));
+                called++;
+            }
+        });
+
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .addFrameDefinition(definition)
+                .build();
+
+        byte[] bytes = frame();
+        parser.add(bytes);
+        for (byte b : bytes) {
+            parser.add(b);
+        }
+        assertEquals(2, called);
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, '+')
+                                .setTerminatingByte((byte) ';')
+                                .addViewListener(new SerialParser.FrameViewListener() {
+                                    public void onFrameMatched(FrameView frame) {
+                                        assertArrayEquals("abc".getBytes(), frame.toByteArray());
+                                        assertEquals('b', frame.peek(1));
+                                        called++;
+                                    }
+                                })
+                )
+                .build();
+
+        parser.add("xx+abc;".getBytes());
+        assertEquals(1, called);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFieldOutsideFrame() {
+        new SerialParser
+                .Builder()
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, '$')
+                                .setDataLength(3)
+                                .addField("value", 0, FrameField.Type.INT32)
+                );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownField() {
+        new SerialParser.FrameDefinition(1, '$').getField("value");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFloatAsInteger() throws Exception {
+        SerialParser.FrameDefinition definition = new SerialParser.FrameDefinition(1, '$')
+                .setDataLength(4)
+                .addField("value", 0, FrameField.Type.FLOAT32);
+        new FrameView().set(definition, new ArrayByteView().set(new byte[5], 0, 5), 1, 4)
+                .getLong("value");
+    }
+}
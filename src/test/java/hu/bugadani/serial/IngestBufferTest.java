@@ -0,0 +1,146 @@
+package hu.bugadani.serial;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IngestBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String readAll(IngestBuffer buffer) {
+        byte[] data = new byte[buffer.available()];
+        assertEquals(data.length, buffer.read(data, 0, data.length));
+        return new String(data);
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        IngestBuffer buffer = new IngestBuffer(4, IngestBuffer.OverflowPolicy.DROP_NEWEST);
+        assertEquals(0, buffer.offer("abc".getBytes()));
+        assertEquals(2, buffer.offer("def".getBytes()));
+        assertEquals("abcd", readAll(buffer));
+        assertEquals(2, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        IngestBuffer buffer = new IngestBuffer(4, IngestBuffer.OverflowPolicy.DROP_OLDEST);
+        assertEquals(0, buffer.offer("abc".getBytes()));
+        assertEquals(2, buffer.offer("def".getBytes()));
+        assertEquals("cdef", readAll(buffer));
+
+        assertEquals(2, buffer.offer("123456".getBytes()));
+        assertEquals("3456", readAll(buffer));
+        assertEquals(4, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void testBlockTimeout() throws Exception {
+        IngestBuffer buffer = new IngestBuffer(4, IngestBuffer.OverflowPolicy.BLOCK);
+        buffer.setBlockTimeout(10, TimeUnit.MILLISECONDS);
+        assertEquals(0, buffer.offer("abc".getBytes()));
+        assertEquals(2, buffer.offer("def".getBytes()));
+        assertEquals("abcd", readAll(buffer));
+    }
+
+    @Test(timeout = 5000)
+    public void testBlockWaitsForConsumer() throws Exception {
+        final IngestBuffer buffer = new IngestBuffer(4, IngestBuffer.OverflowPolicy.BLOCK);
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            expected.append((char) ('a' + i % 26));
+        }
+        final StringBuilder consumed = new StringBuilder();
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                //Emptying the buffer makes the consumer wait for the producer
+                byte[] data = new byte[4];
+                try {
+                    while (consumed.length() < expected.length() && buffer.awaitData(1, TimeUnit.HOURS)) {
+                        int length = buffer.read(data, 0, data.length);
+                        consumed.append(new String(data, 0, length));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.setDaemon(true);
+        consumer.start();
+
+        assertEquals(0, buffer.offer(expected.toString().getBytes()));
+        consumer.join();
+        assertEquals(expected.toString(), consumed.toString());
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void testSpillKeepsOrder() throws Exception {
+        IngestBuffer buffer = new IngestBuffer(4, folder.newFile(), 8);
+        try {
+            assertEquals(0, buffer.offer("abcdef".getBytes()));
+            assertEquals(2, buffer.getSpilledSize());
+
+            byte[] data = new byte[3];
+            assertEquals(3, buffer.read(data, 0, 3));
+            assertEquals("abc", new String(data));
+
+            //Spilled bytes are moved back to the freed memory
+            assertEquals(0, buffer.getSpilledSize());
+            assertEquals(3, buffer.available());
+
+            //Memory and file capacity add up
+            assertEquals(0, buffer.offer("ghi".getBytes()));
+            assertEquals(2, buffer.getSpilledSize());
+            assertEquals(1, buffer.offer("jklmnop".getBytes()));
+            assertEquals(8, buffer.getSpilledSize());
+            assertEquals("defghijklmno", readAll(buffer));
+            assertEquals(10, buffer.getSpilledCount());
+            assertEquals(1, buffer.getDroppedCount());
+
+            //The spill file wraps around
+            assertEquals(0, buffer.offer("1234567890".getBytes()));
+            assertEquals("1234567890", readAll(buffer));
+        } finally {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testDrainToParser() throws Exception {
+        final List<String> frames = new ArrayList<String>();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(8)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(new SerialParser.FrameMatchListener() {
+                                    public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                                        frames.add(new String(data));
+                                    }
+                                })
+                )
+                .build();
+
+        IngestBuffer buffer = new IngestBuffer(4, folder.newFile(), 64);
+        try {
+            buffer.offer("+12;+345;".getBytes());
+            buffer.offer("+6789;".getBytes());
+            assertEquals(15, buffer.drainTo(parser));
+            assertEquals(0, buffer.available());
+            assertEquals(Arrays.asList("12", "345", "6789"), frames);
+        } finally {
+            buffer.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package hu.bugadani.serial;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram(7);
+        for (int i = 1; i <= 100; i++) {
+            histogram.recordValue(i);
+        }
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(50.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void testRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram(7);
+        long[] values = {1000, 123456, 98765432L, 5000000000L, Long.MAX_VALUE};
+        for (long value : values) {
+            histogram.reset();
+            histogram.recordValue(value);
+            histogram.recordValue(value / 2);
+            long result = histogram.getValueAtPercentile(50);
+            assertTrue(result >= value / 2);
+            assertTrue((double) (result - value / 2) / (value / 2) < 1.0 / 64);
+        }
+    }
+
+    @Test
+    public void testAddAndCopy() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.recordValue(10);
+        b.recordValue(1000);
+        b.recordValue(-5);
+
+        LatencyHistogram copy = a.copy();
+        a.add(b);
+
+        assertEquals(3, a.getTotalCount());
+        assertEquals(0, a.getMin());
+        assertEquals(1000, a.getMax());
+        assertEquals(1, copy.getTotalCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddDifferentPrecision() {
+        new LatencyHistogram(7).add(new LatencyHistogram(8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrackerPrecisionOutOfRange() {
+        new LatencyTracker(17);
+    }
+}
@@ -0,0 +1,92 @@
+package hu.bugadani.serial;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NestedGrammarTest {
+
+    private final List<String> frames = new ArrayList<String>();
+
+    private final NestedGrammar.NestedFrameListener listener = new NestedGrammar.NestedFrameListener() {
+        public void onFrameMatched(int[] path, int depth, FrameView frame) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                sb.append(path[i]).append('/');
+            }
+            frames.add(sb.append(new String(frame.toByteArray())).toString());
+        }
+    };
+
+    @Test
+    public void testNestedFrames() throws Exception {
+        final List<String> copied = new ArrayList<String>();
+        NestedGrammar innermost = new NestedGrammar()
+                .setListener(listener)
+                .addFrameDefinition(new SerialParser.FrameDefinition(30, "#").setDataLength(1));
+
+        NestedGrammar inner = new NestedGrammar()
+                .setListener(listener)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(20, "<")
+                                .setTerminatingByte((byte) '>')
+                                .addListener(new SerialParser.FrameMatchListener() {
+                                    public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                                        copied.add(new String(data));
+                                    }
+                                }),
+                        innermost
+                )
+                .addFrameDefinition(new SerialParser.FrameDefinition(21, "[").setDataLength(2));
+
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(32)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "$")
+                                .setTerminatingByte((byte) ';')
+                                .addViewListener(inner)
+                )
+                .build();
+
+        parser.add("$x<a#1#2>[bc<d;".getBytes());
+
+        assertEquals(Arrays.asList("1/20/a#1#2", "1/20/30/1", "1/20/30/2", "1/21/bc"), frames);
+        assertEquals(Arrays.asList("a#1#2"), copied);
+        assertEquals(2, inner.getMatchedCount());
+        assertEquals(2, innermost.getMatchedCount());
+        //'x' and the incomplete frame "<d"
+        assertEquals(3, inner.getSkippedCount());
+        //'a' is not an inner frame
+        assertEquals(1, innermost.getSkippedCount());
+    }
+
+    @Test
+    public void testPredicate() throws Exception {
+        NestedGrammar inner = new NestedGrammar()
+                .setListener(listener)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(20, "#")
+                                .setDataLength(1)
+                                .setPredicate(FramePredicates.byteIn(0, '1'))
+                );
+        SerialParser parser = new SerialParser
+                .Builder()
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "$").setDataLength(4).addViewListener(inner))
+                .build();
+
+        parser.add("$#1#2".getBytes());
+        assertEquals(Arrays.asList("1/20/1"), frames);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateFrameId() throws Exception {
+        new NestedGrammar()
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "#").setDataLength(1))
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "$").setDataLength(1));
+    }
+}
@@ -0,0 +1,83 @@
+package hu.bugadani.serial;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParserEventsTest {
+
+    private static class RecordingEvents extends ParserEvents {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        void frameMatched(int frameId, int length) {
+            events.add("match " + frameId + " " + length);
+        }
+
+        @Override
+        Object resyncStarted() {
+            events.add("resync");
+            return "token";
+        }
+
+        @Override
+        void resynced(Object token, long droppedBytes) {
+            events.add("resynced " + token + " " + droppedBytes);
+        }
+
+        @Override
+        void bufferFull(int capacity) {
+            events.add("full " + capacity);
+        }
+
+        @Override
+        Object listenerStarted(int frameId) {
+            events.add("listener " + frameId);
+            return frameId;
+        }
+
+        @Override
+        void listenerFinished(Object token) {
+            events.add("finished " + token);
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        //Nothing is recorded while no flight recording is running
+        assertFalse(ParserEvents.INSTANCE.isEnabled());
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(4)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "+").setTerminatingByte((byte) ';'))
+                .build();
+        RecordingEvents events = new RecordingEvents();
+        parser.mEvents = events;
+
+        parser.add("xy+ab;".getBytes());
+        assertEquals(Arrays.asList(
+                "resync",
+                "resynced token 2",
+                "match 1 2",
+                "listener 1",
+                "finished 1"
+        ), events.events);
+
+        events.events.clear();
+        parser.add("+abcd;".getBytes());
+        assertEquals("full 4", events.events.get(0));
+    }
+}
@@ -0,0 +1,171 @@
+package hu.bugadani.serial;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sustained load tests with generated traffic.
+ * <p>
+ * The default volume is small enough for every build. Run with -Psoak for GB scale.
+ * The throughput is checked relative to generating the same traffic without a parser, so it does not depend
+ * on the speed of the machine.
+ */
+public class SerialParserSoakTest {
+
+    private static final long SOAK_BYTES = Long.getLong("soak.bytes", 4L * 1024 * 1024);
+    private static final long REFERENCE_BYTES = Math.min(SOAK_BYTES, 16L * 1024 * 1024);
+    private static final double MIN_RELATIVE_THROUGHPUT =
+            Double.parseDouble(System.getProperty("soak.minRelativeThroughput", "0.2"));
+    private static final double MAX_ALLOCATION_PER_FRAME =
+            Double.parseDouble(System.getProperty("soak.maxAllocationPerFrame", "1"));
+
+    private static class Checker implements SerialParser.FrameViewListener {
+        final TrafficGenerator generator;
+        long matched = 0;
+
+        Checker(TrafficGenerator generator) {
+            this.generator = generator;
+        }
+
+        public void onFrameMatched(FrameView frame) {
+            if (generator.getExpectedFrameId() != frame.getFrameId()
+                    || generator.getExpectedHash() != TrafficGenerator.hash(frame)) {
+                fail("Unexpected frame " + frame.getFrameId() + " after " + matched + " frames");
+            }
+            generator.removeExpected();
+            matched++;
+        }
+    }
+
+    private static SerialParser.FrameDefinition[] createGrammar() {
+        return new SerialParser.FrameDefinition[]{
+                new SerialParser.FrameDefinition(1, "$").setTerminator("\r\n"),
+                new SerialParser.FrameDefinition(2, "#").setDataLength(8),
+                new SerialParser.FrameDefinition(3, "%A").setDataLength(4).setTerminatingByte((byte) ';'),
+        };
+    }
+
+    private static SerialParser createParser(Checker checker, SerialParser.MatchPolicy policy) {
+        SerialParser.Builder builder = new SerialParser.Builder()
+                .setBufferSize(64)
+                .setMatchPolicy(policy);
+        for (SerialParser.FrameDefinition fd : createGrammar()) {
+            builder.addFrameDefinition(fd.addViewListener(checker));
+        }
+        return builder.build();
+    }
+
+    private static TrafficGenerator createGenerator(double noise, double corruption, int maxFragment) {
+        TrafficGenerator generator = new TrafficGenerator(12345)
+                .setMaxDataLength(48)
+                .setNoise(noise, 8)
+                .setCorruptionRate(corruption)
+                .setFragmentation(1, maxFragment);
+        SerialParser.FrameDefinition[] grammar = createGrammar();
+        generator.addFrameDefinition(grammar[0], 5);
+        generator.addFrameDefinition(grammar[1], 3);
+        generator.addFrameDefinition(grammar[2], 2);
+        return generator;
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread, or -1 if the JVM does not report it
+     */
+    private static long allocatedBytes() {
+        try {
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            Method method = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void run(SerialParser parser, TrafficGenerator generator, byte[] chunk, long bytes) {
+        long end = generator.getByteCount() + bytes;
+        while (generator.getByteCount() < end) {
+            parser.add(chunk, 0, generator.read(chunk, 0, chunk.length));
+        }
+    }
+
+    /**
+     * Generate the traffic without parsing it, the expected frames are discarded
+     */
+    private static void generate(TrafficGenerator generator, byte[] chunk, long bytes) {
+        long end = generator.getByteCount() + bytes;
+        while (generator.getByteCount() < end) {
+            generator.read(chunk, 0, chunk.length);
+            while (generator.getExpectedCount() > 0) {
+                generator.removeExpected();
+            }
+        }
+    }
+
+    /**
+     * @return The throughput of generating the traffic alone in MB/s. It scales with the machine like the
+     * parser does, so the parser's throughput is checked relative to it.
+     */
+    private static double referenceThroughput(double noise, double corruption, int maxFragment) {
+        TrafficGenerator generator = createGenerator(noise, corruption, maxFragment);
+        byte[] chunk = new byte[maxFragment];
+        generate(generator, chunk, Math.min(REFERENCE_BYTES, 1024 * 1024));
+
+        long start = System.nanoTime();
+        generate(generator, chunk, REFERENCE_BYTES);
+        return REFERENCE_BYTES / ((System.nanoTime() - start) / 1e9) / (1024 * 1024);
+    }
+
+    private void soak(double noise, double corruption, int maxFragment, SerialParser.MatchPolicy policy) {
+        TrafficGenerator generator = createGenerator(noise, corruption, maxFragment);
+        Checker checker = new Checker(generator);
+        SerialParser parser = createParser(checker, policy);
+        byte[] chunk = new byte[maxFragment];
+
+        //Warm up, so the buffers have grown and the hot path is compiled
+        run(parser, generator, chunk, Math.min(SOAK_BYTES, 1024 * 1024));
+
+        long matchedBefore = checker.matched;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        run(parser, generator, chunk, SOAK_BYTES);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long frames = checker.matched - matchedBefore;
+
+        //Every frame that is not corrupted is matched, except the ones still being received
+        assertTrue(frames > 0);
+        assertTrue(generator.getExpectedCount() < 16);
+        assertEquals(generator.getFrameCount() - generator.getCorruptedCount() - generator.getExpectedCount(),
+                checker.matched);
+
+        //The measured time includes generating the traffic, so the ratio is below 1 even for a free parser
+        double throughput = SOAK_BYTES / (elapsed / 1e9) / (1024 * 1024);
+        double reference = referenceThroughput(noise, corruption, maxFragment);
+        assertTrue("Throughput " + throughput + " MB/s, generator alone " + reference + " MB/s",
+                throughput >= reference * MIN_RELATIVE_THROUGHPUT);
+
+        Assume.assumeTrue(allocatedBefore >= 0);
+        double allocationPerFrame = (double) allocated / frames;
+        assertTrue("Allocated " + allocationPerFrame + " bytes per frame", allocationPerFrame <= MAX_ALLOCATION_PER_FRAME);
+    }
+
+    @Test
+    public void testCleanStream() throws Exception {
+        soak(0, 0, 4096, SerialParser.MatchPolicy.SHORTEST);
+    }
+
+    @Test
+    public void testNoisyFragmentedStream() throws Exception {
+        soak(0.2, 0.05, 17, SerialParser.MatchPolicy.SHORTEST);
+    }
+
+    @Test
+    public void testNoisyStreamFirstMatch() throws Exception {
+        soak(0.2, 0.05, 512, SerialParser.MatchPolicy.FIRST);
+    }
+}
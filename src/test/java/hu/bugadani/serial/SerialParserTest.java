@@ -2,6 +2,13 @@ package hu.bugadani.serial;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 public class SerialParserTest {
@@ -174,4 +181,784 @@ public class SerialParserTest {
         parser.add(" something that will not be matched  +123456789;".getBytes());
         assertEquals(2, called);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBatchListener() throws Exception {
+        final List<String> frames = new ArrayList<String>();
+        SerialParser.FrameBatchListener listener = new SerialParser.FrameBatchListener() {
+            public void onFramesMatched(FrameBatch batch) {
+                called++;
+                for (int i = 0; i < batch.size(); i++) {
+                    frames.add(batch.getFrameId(i) + ":" + new String(batch.getData(), batch.getOffset(i), batch.getLength(i)));
+                }
+            }
+        };
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .setBatchListener(listener)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(0, '-')
+                                .setDataLength(6)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setTerminatingByte((byte) ';')
+                )
+                .build();
+
+        parser.add("+123;+45;  -asdfjk;+;".getBytes());
+        assertEquals(1, called);
+        assertEquals(Arrays.asList("1:123", "1:45", "0:asdfjk", "1:"), frames);
+
+        parser.add("nothing".getBytes());
+        assertEquals(1, called);
+    }
+
+    @Test
+    public void testFirstMatchPolicy() throws Exception {
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                assertTrue(frame.isFrame(1));
+                called++;
+            }
+        };
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(11)
+                .setMatchPolicy(SerialParser.MatchPolicy.FIRST)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(2, "+")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(listener)
+                )
+                .build();
+
+        parser.add(" something  +123;+45;".getBytes());
+        assertEquals(2, called);
+    }
+
+    @Test
+    public void testPriorityMatchPolicy() throws Exception {
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                assertTrue(frame.isFrame(2));
+                called++;
+            }
+        };
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(11)
+                .setMatchPolicy(SerialParser.MatchPolicy.PRIORITY)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(2, "+")
+                                .setTerminatingByte((byte) ';')
+                                .setPriority(1)
+                                .addListener(listener)
+                )
+                .build();
+
+        parser.add("+123;+45;".getBytes());
+        assertEquals(2, called);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAdaptiveOrderingRequiresFirstPolicy() {
+        new SerialParser
+                .Builder()
+                .setAdaptiveOrdering(true)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(0, '-').setDataLength(1)
+                )
+                .build();
+    }
+
+    @Test
+    public void testAdaptiveOrdering() throws Exception {
+        final int[] counts = new int[2];
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                counts[frame.getFrameId()]++;
+            }
+        };
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setMatchPolicy(SerialParser.MatchPolicy.FIRST)
+                .setAdaptiveOrdering(true)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(0, "ab")
+                                .setDataLength(2)
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "ac")
+                                .setDataLength(2)
+                                .addListener(listener)
+                )
+                .build();
+        assertEquals(0, parser.mDispatchTable['a'][0].getFrameId());
+
+        for (int i = 0; i < 3000; i++) {
+            parser.add((i % 10 == 0 ? "ab12" : "ac12").getBytes());
+        }
+        assertEquals(300, counts[0]);
+        assertEquals(2700, counts[1]);
+
+        //The more frequent frame is evaluated first
+        assertEquals(1, parser.mDispatchTable['a'][0].getFrameId());
+        assertEquals(0, parser.mDispatchTable['a'][1].getFrameId());
+    }
+
+    @Test
+    public void testFirstMatchWaitsForHigherRankedFrame() throws Exception {
+        for (SerialParser.MatchPolicy policy : new SerialParser.MatchPolicy[]{
+                SerialParser.MatchPolicy.FIRST,
+                SerialParser.MatchPolicy.PRIORITY
+        }) {
+            final List<String> frames = new ArrayList<String>();
+            SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+                public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                    frames.add(frame.getFrameId() + ":" + new String(data));
+                }
+            };
+            SerialParser parser = new SerialParser
+                    .Builder()
+                    .setMatchPolicy(policy)
+                    .addFrameDefinition(new SerialParser.FrameDefinition(1, "+").setDataLength(4).addListener(listener))
+                    .addFrameDefinition(new SerialParser.FrameDefinition(2, "+").setDataLength(2).addListener(listener))
+                    .build();
+
+            //The result does not depend on how the input is split
+            parser.add("+abcd".getBytes());
+            for (byte b : "+efgh".getBytes()) {
+                parser.add(b);
+            }
+            assertEquals(Arrays.asList("1:abcd", "1:efgh"), frames);
+        }
+    }
+
+    private SerialParser createTimeoutParser(SerialParser.Builder builder, final List<String> frames) {
+        return builder
+                .setBufferSize(20)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(new SerialParser.FrameMatchListener() {
+                                    public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                                        frames.add(new String(data));
+                                    }
+                                })
+                )
+                .build();
+    }
+
+    @Test
+    public void testInterByteTimeoutDiscard() throws Exception {
+        TimerWheelTest.ManualClock clock = new TimerWheelTest.ManualClock();
+        List<String> frames = new ArrayList<String>();
+        SerialParser parser = createTimeoutParser(
+                new SerialParser.Builder()
+                        .setClock(clock)
+                        .setInterByteTimeout(10, TimeUnit.MILLISECONDS),
+                frames
+        );
+
+        parser.add("+abc".getBytes());
+        clock.advance(9, TimeUnit.MILLISECONDS);
+        assertFalse(parser.checkTimeout());
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertTrue(parser.checkTimeout());
+        assertFalse(parser.checkTimeout());
+
+        parser.add("+12;".getBytes());
+        assertEquals(Arrays.asList("12"), frames);
+    }
+
+    @Test
+    public void testFrameTimeoutComplete() throws Exception {
+        TimerWheelTest.ManualClock clock = new TimerWheelTest.ManualClock();
+        List<String> frames = new ArrayList<String>();
+        SerialParser parser = createTimeoutParser(
+                new SerialParser.Builder()
+                        .setClock(clock)
+                        .setFrameTimeout(10, TimeUnit.MILLISECONDS)
+                        .setTimeoutAction(SerialParser.TimeoutAction.COMPLETE),
+                frames
+        );
+
+        parser.add("+ab".getBytes());
+        clock.advance(6, TimeUnit.MILLISECONDS);
+        parser.add("c".getBytes());
+        assertFalse(parser.checkTimeout());
+        clock.advance(4, TimeUnit.MILLISECONDS);
+        assertTrue(parser.checkTimeout());
+
+        parser.add("+12;".getBytes());
+        assertEquals(Arrays.asList("abc", "12"), frames);
+    }
+
+    @Test
+    public void testTimerWheelTimeout() throws Exception {
+        TimerWheelTest.ManualClock clock = new TimerWheelTest.ManualClock();
+        TimerWheel wheel = new TimerWheel(clock, 1, TimeUnit.MILLISECONDS, 16);
+        List<String> frames = new ArrayList<String>();
+        SerialParser.Builder builder = new SerialParser.Builder()
+                .setTimerWheel(wheel)
+                .setInterByteTimeout(5, TimeUnit.MILLISECONDS)
+                .setTimeoutAction(SerialParser.TimeoutAction.COMPLETE);
+        SerialParser parser = createTimeoutParser(builder, frames);
+
+        parser.add("+ab".getBytes());
+        assertEquals(1, wheel.getPendingCount());
+
+        clock.advance(3, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        parser.add("c".getBytes());
+
+        clock.advance(3, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertTrue(frames.isEmpty());
+
+        clock.advance(2, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertEquals(Arrays.asList("abc"), frames);
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void testLatencyTracking() throws Exception {
+        final TimerWheelTest.ManualClock clock = new TimerWheelTest.ManualClock();
+        LatencyTracker tracker = new LatencyTracker();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .setClock(clock)
+                .setLatencyTracker(tracker)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(new SerialParser.FrameMatchListener() {
+                                    public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                                        clock.advance(3, TimeUnit.MICROSECONDS);
+                                    }
+                                })
+                )
+                .build();
+
+        parser.add("+12".getBytes());
+        clock.advance(5, TimeUnit.MICROSECONDS);
+        parser.add("3;+4".getBytes());
+        clock.advance(7, TimeUnit.MICROSECONDS);
+        parser.add(";".getBytes());
+
+        Map<Integer, LatencyTracker.FrameLatency> snapshot = tracker.snapshot();
+        assertEquals(1, snapshot.size());
+
+        LatencyHistogram queueLatency = snapshot.get(1).getQueueLatency();
+        assertEquals(2, queueLatency.getTotalCount());
+        assertEquals(5000, queueLatency.getMin());
+        assertEquals(10000, queueLatency.getMax());
+
+        LatencyHistogram listenerLatency = snapshot.get(1).getListenerLatency();
+        assertEquals(2, listenerLatency.getTotalCount());
+        assertEquals(3000, listenerLatency.getMax());
+    }
+
+    @Test
+    public void testLatencyTrackingForgetsUndispatchedBytes() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setLatencyTracker(tracker)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setDataLength(1)
+                                .setPredicate(FramePredicates.byteIn(0, 'a'))
+                )
+                .build();
+
+        //Noise and rejected frames never reach dispatch
+        for (int i = 0; i < 1000; i++) {
+            parser.add("x+b".getBytes());
+        }
+        assertTrue(parser.mArrivalCount <= 2);
+    }
+
+    @Test
+    public void testHeaderLengths() throws Exception {
+        final List<String> frames = new ArrayList<String>();
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                frames.add(frame.getFrameId() + ":" + new String(data));
+            }
+        };
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "a")
+                                .setDataLength(2)
+                                .setTerminatingByte((byte) ';')
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(2, "bc")
+                                .setDataLength(1)
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(3, "def")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(listener)
+                )
+                .build();
+
+        parser.add("a12;a123bbc1dedef45;".getBytes());
+        assertEquals(Arrays.asList("1:12", "2:1", "3:45"), frames);
+    }
+
+    @Test
+    public void testEmptyHeader() throws Exception {
+        final List<String> frames = new ArrayList<String>();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "")
+                                .setTerminatingByte((byte) '\n')
+                                .addListener(new SerialParser.FrameMatchListener() {
+                                    public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                                        frames.add(new String(data));
+                                    }
+                                })
+                )
+                .build();
+
+        parser.add("line\nnext\n".getBytes());
+        assertEquals(Arrays.asList("line", "next"), frames);
+    }
+
+    @Test
+    public void testMultiByteTerminator() throws Exception {
+        final List<String> frames = new ArrayList<String>();
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                frames.add(frame.getFrameId() + ":" + new String(data));
+            }
+        };
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(16)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "$")
+                                .setTerminator("\r\n")
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(2, "#")
+                                .setTerminator("aab")
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(3, "!")
+                                .setDataLength(2)
+                                .setTerminator("\r\n")
+                                .addListener(listener)
+                )
+                .build();
+
+        for (byte b : "$a\rb\r\n#xaaab!12\r\n!12\r\r$\r\r\n".getBytes()) {
+            parser.add(b);
+        }
+        assertEquals(Arrays.asList("1:a\rb", "2:xa", "3:12", "1:\r"), frames);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyTerminator() {
+        new SerialParser.FrameDefinition(1, "$").setTerminator(new byte[0]);
+    }
+
+    @Test
+    public void testAlignedMode() throws Exception {
+        final List<String> frames = new ArrayList<String>();
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                frames.add(frame.getFrameId() + ":" + new String(data));
+            }
+        };
+        SerialParser parser = new SerialParser
+                .Builder()
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "ab")
+                                .setDataLength(2)
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(2, "ac")
+                                .setDataLength(1)
+                                .setTerminatingByte((byte) ';')
+                                .addListener(listener)
+                )
+                .build();
+        assertTrue(parser.isAligned());
+
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            input.append("ab12ac3;");
+        }
+        parser.add(input.toString().getBytes());
+        assertEquals(200, frames.size());
+
+        frames.clear();
+        //partial frame, garbage, and a frame with a wrong terminator
+        parser.add("ab3".getBytes());
+        parser.add("4xxac5!ac6;ab78".getBytes());
+        assertEquals(Arrays.asList("1:34", "2:6", "1:78"), frames);
+    }
+
+    @Test
+    public void testAlignedModeDetection() throws Exception {
+        assertFalse(new SerialParser
+                .Builder()
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "a").setDataLength(2))
+                .addFrameDefinition(new SerialParser.FrameDefinition(2, "ab").setDataLength(1))
+                .build()
+                .isAligned());
+        assertFalse(new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "a").setDataLength(2))
+                .addFrameDefinition(new SerialParser.FrameDefinition(2, "b").setTerminatingByte((byte) ';'))
+                .build()
+                .isAligned());
+    }
+
+    private static SerialParser createSnapshotParser(SerialParser.FrameMatchListener listener, String terminator) {
+        return new SerialParser
+                .Builder()
+                .setBufferSize(64)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "$")
+                                .setTerminator(terminator)
+                                .addListener(listener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(2, "#")
+                                .setDataLength(3)
+                                .addListener(listener)
+                )
+                .build();
+    }
+
+    @Test
+    public void testSnapshotRestore() throws Exception {
+        final List<String> frames = new ArrayList<String>();
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                frames.add(frame.getFrameId() + ":" + new String(data));
+            }
+        };
+
+        SerialParser parser = createSnapshotParser(listener, "\r\n");
+        //Snapshot in the middle of a variable length frame, after the first terminator byte
+        parser.add("#abc$hello\r".getBytes());
+        byte[] snapshot = parser.saveState();
+        assertEquals(Arrays.asList("2:abc"), frames);
+
+        frames.clear();
+        SerialParser restored = createSnapshotParser(listener, "\r\n");
+        assertEquals(parser.getGrammarFingerprint(), restored.getGrammarFingerprint());
+        restored.restoreState(snapshot);
+        restored.add("\n#de".getBytes());
+        restored.add("f".getBytes());
+        assertEquals(Arrays.asList("1:hello", "2:def"), frames);
+
+        //The original parser is not affected
+        frames.clear();
+        parser.add("\n".getBytes());
+        assertEquals(Arrays.asList("1:hello"), frames);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSnapshotGrammarMismatch() throws Exception {
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+            }
+        };
+        SerialParser parser = createSnapshotParser(listener, "\r\n");
+        parser.add("$abc".getBytes());
+
+        createSnapshotParser(listener, "\n").restoreState(parser.saveState());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedSnapshot() throws Exception {
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+            }
+        };
+        SerialParser parser = createSnapshotParser(listener, "\r\n");
+        parser.add("$abc".getBytes());
+        byte[] snapshot = parser.saveState();
+
+        createSnapshotParser(listener, "\r\n").restoreState(Arrays.copyOf(snapshot, snapshot.length - 1));
+    }
+
+    @Test
+    public void testRejectedSnapshotKeepsState() throws Exception {
+        final List<String> frames = new ArrayList<String>();
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                frames.add(frame.getFrameId() + ":" + new String(data));
+            }
+        };
+        SerialParser parser = createSnapshotParser(listener, "\r\n");
+        parser.add("$abc\r".getBytes());
+        byte[] snapshot = parser.saveState();
+        //Scan index of the first frame definition, inside its header
+        ByteBuffer.wrap(snapshot).putInt(38, 0);
+
+        SerialParser restored = createSnapshotParser(listener, "\r\n");
+        restored.add("$xy".getBytes());
+        try {
+            restored.restoreState(snapshot);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        restored.add("z\r\n".getBytes());
+        assertEquals(Arrays.asList("1:xyz"), frames);
+    }
+
+    private static class RecordingStreamListener implements SerialParser.FrameStreamListener {
+        final StringBuilder events = new StringBuilder();
+
+        public void onFrameStart(SerialParser.FrameDefinition frame) {
+            events.append("<");
+        }
+
+        public void onFrameChunk(FrameView chunk) {
+            events.append("[").append(new String(chunk.toByteArray())).append("]");
+        }
+
+        public void onFrameEnd(SerialParser.FrameDefinition frame, boolean complete) {
+            events.append(complete ? ">" : "!");
+        }
+    }
+
+    @Test
+    public void testStreamingFrame() throws Exception {
+        RecordingStreamListener streamListener = new RecordingStreamListener();
+        final List<String> frames = new ArrayList<String>();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(8)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "$")
+                                .setTerminator("\r\n")
+                                .setStreamListener(streamListener)
+                )
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(2, "#")
+                                .setDataLength(2)
+                                .addListener(new SerialParser.FrameMatchListener() {
+                                    public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                                        frames.add(new String(data));
+                                    }
+                                })
+                )
+                .build();
+
+        //A frame that fits into the buffer is a single chunk
+        parser.add("$abc\r\n".getBytes());
+        assertEquals("<[abc]>", streamListener.events.toString());
+
+        //A frame larger than the buffer, with a lone \r in the data and a split terminator
+        streamListener.events.setLength(0);
+        parser.add("$0123456789\rABCDEFG".getBytes());
+        parser.add("HIJ\r".getBytes());
+        parser.add("\n#xy".getBytes());
+        assertEquals("<[0123456][789\rABCD][EFG][HIJ]>", streamListener.events.toString());
+        assertEquals(Arrays.asList("xy"), frames);
+    }
+
+    @Test
+    public void testStreamingFrameTimeout() throws Exception {
+        TimerWheelTest.ManualClock clock = new TimerWheelTest.ManualClock();
+        RecordingStreamListener streamListener = new RecordingStreamListener();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(4)
+                .setClock(clock)
+                .setInterByteTimeout(10, TimeUnit.MILLISECONDS)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "$")
+                                .setTerminator("\r\n")
+                                .setStreamListener(streamListener)
+                )
+                .build();
+
+        parser.add("$abcdef\r".getBytes());
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        assertTrue(parser.checkTimeout());
+        assertEquals("<[abc][def]!", streamListener.events.toString());
+
+        //The held back byte was dropped, the next frame is matched normally
+        streamListener.events.setLength(0);
+        parser.add("\n$x\r\n".getBytes());
+        assertEquals("<[x]>", streamListener.events.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStreamingFixedLengthFrame() throws Exception {
+        new SerialParser
+                .Builder()
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "$")
+                                .setDataLength(2)
+                                .setStreamListener(new RecordingStreamListener())
+                )
+                .build();
+    }
+
+    @Test
+    public void testPullFrames() throws Exception {
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(16)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "+").setTerminatingByte((byte) ';'))
+                .addFrameDefinition(new SerialParser.FrameDefinition(2, "#").setDataLength(2))
+                .build();
+
+        FrameCursor cursor = new FrameCursor();
+        List<String> frames = new ArrayList<String>();
+        parser.feed("x+abc;#12+de".getBytes());
+        while (parser.nextFrame(cursor)) {
+            frames.add(cursor.getFrameId() + "@" + cursor.getPosition() + ":" + new String(cursor.getView().toByteArray()));
+        }
+        parser.feed("f;#3".getBytes());
+        while (parser.nextFrame(cursor)) {
+            frames.add(cursor.getFrameId() + "@" + cursor.getPosition() + ":" + new String(cursor.getView().toByteArray()));
+        }
+        parser.feed("4".getBytes());
+        assertTrue(parser.nextFrame(cursor));
+        assertEquals(2, cursor.getFrameId());
+        assertEquals(14, cursor.getPosition());
+        assertEquals(2, cursor.getLength());
+        assertFalse(parser.nextFrame(cursor));
+
+        assertEquals(Arrays.asList("1@1:abc", "2@6:12", "1@9:def"), frames);
+    }
+
+    @Test
+    public void testPullFramesWithTimeout() throws Exception {
+        TimerWheelTest.ManualClock clock = new TimerWheelTest.ManualClock();
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(16)
+                .setClock(clock)
+                .setInterByteTimeout(10, TimeUnit.MILLISECONDS)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "+").setTerminatingByte((byte) ';'))
+                .build();
+
+        FrameCursor cursor = new FrameCursor();
+        parser.feed("+ab;+cd".getBytes());
+        assertTrue(parser.nextFrame(cursor));
+        assertEquals("ab", new String(cursor.getView().toByteArray()));
+
+        //The pulled frame is complete, a timeout must not remove it a second time
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        parser.checkTimeout();
+        assertFalse(parser.nextFrame(cursor));
+
+        //The partial frame is stale
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        assertTrue(parser.checkTimeout());
+
+        parser.feed("+ef;".getBytes());
+        assertTrue(parser.nextFrame(cursor));
+        assertEquals(7, cursor.getPosition());
+        assertEquals("ef", new String(cursor.getView().toByteArray()));
+        assertFalse(parser.nextFrame(cursor));
+    }
+
+    @Test
+    public void testPullFramesAligned() throws Exception {
+        SerialParser parser = new SerialParser
+                .Builder()
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "ab")
+                                .setDataLength(2)
+                                .setPredicate(FramePredicates.byteNotIn(0, 'x'))
+                )
+                .addFrameDefinition(new SerialParser.FrameDefinition(2, "c").setDataLength(1))
+                .build();
+        assertTrue(parser.isAligned());
+
+        FrameCursor cursor = new FrameCursor();
+        StringBuilder frames = new StringBuilder();
+        parser.feed("ab12c3abx1ab4".getBytes());
+        while (parser.nextFrame(cursor)) {
+            frames.append(cursor.getFrameId()).append(new String(cursor.getView().toByteArray())).append(' ');
+        }
+        parser.feed("5".getBytes());
+        while (parser.nextFrame(cursor)) {
+            frames.append(cursor.getFrameId()).append(new String(cursor.getView().toByteArray())).append(' ');
+        }
+        assertEquals("112 23 145 ", frames.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddWithPendingInput() throws Exception {
+        SerialParser parser = new SerialParser
+                .Builder()
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "#").setDataLength(2))
+                .build();
+        parser.feed("#12".getBytes());
+        parser.add("#34".getBytes());
+    }
+
+    private static SerialParser createBlockBoundaryParser(SerialParser.FrameMatchListener listener) {
+        return new SerialParser
+                .Builder()
+                .setBufferSize(7)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, ";b").setDataLength(3).addListener(listener))
+                .addFrameDefinition(new SerialParser.FrameDefinition(2, ";").setTerminatingByte((byte) ';').addListener(listener))
+                .addFrameDefinition(new SerialParser.FrameDefinition(3, "bb").setTerminatingByte((byte) ';').addListener(listener))
+                .build();
+    }
+
+    @Test
+    public void testBlockBoundaries() throws Exception {
+        //The input is added in longest frame sized blocks counted from its start, this decides what is matched
+        byte[] input = "bbbbx;x;;ab;b;abx;aabaxaba;xbx;".getBytes();
+        final List<String> frames = new ArrayList<String>();
+        SerialParser.FrameMatchListener listener = new SerialParser.FrameMatchListener() {
+            public void onFrameMatched(SerialParser.FrameDefinition frameDefinition, byte[] data) {
+                frames.add(frameDefinition.getFrameId() + ":" + new String(data));
+            }
+        };
+
+        createBlockBoundaryParser(listener).add(input);
+        assertEquals(Arrays.asList("3:bbx", "2:", "2:b", "2:xbx"), frames);
+
+        frames.clear();
+        SerialParser parser = createBlockBoundaryParser(listener);
+        FrameCursor cursor = new FrameCursor();
+        parser.feed(input);
+        while (parser.nextFrame(cursor)) {
+            frames.add(cursor.getFrameId() + ":" + new String(cursor.getView().toByteArray()));
+        }
+        assertEquals(Arrays.asList("3:bbx", "2:", "2:b", "2:xbx"), frames);
+    }
+}
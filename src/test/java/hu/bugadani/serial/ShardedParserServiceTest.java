@@ -0,0 +1,202 @@
+package hu.bugadani.serial;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ShardedParserServiceTest {
+
+    private final ConcurrentHashMap<Long, Thread> threads = new ConcurrentHashMap<Long, Thread>();
+    private final AtomicInteger matched = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private ShardedParserService service;
+
+    //Assertions fail on the shard threads, the handler passes them to the test thread
+    private final ShardedParserService.ErrorHandler failureHandler = new ShardedParserService.ErrorHandler() {
+        public void onError(long streamId, Throwable exception) {
+            failure.compareAndSet(null, exception);
+        }
+    };
+
+    private final ShardedParserService.ParserFactory factory = new ShardedParserService.ParserFactory() {
+        public SerialParser create(final long streamId) {
+            return new SerialParser
+                    .Builder()
+                    .setBufferSize(16)
+                    .addFrameDefinition(
+                            new SerialParser.FrameDefinition(1, "+")
+                                    .setTerminatingByte((byte) ';')
+                                    .addListener(new SerialParser.FrameMatchListener() {
+                                        public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                                            if (data.length == 0) {
+                                                throw new IllegalStateException("empty frame");
+                                            }
+                                            if (data[0] == 'x') {
+                                                throw new StackOverflowError();
+                                            }
+                                            Thread previous = threads.putIfAbsent(streamId, Thread.currentThread());
+                                            assertTrue(previous == null || previous == Thread.currentThread());
+                                            assertEquals(Long.toString(streamId), new String(data));
+                                            matched.incrementAndGet();
+                                        }
+                                    })
+                    )
+                    .build();
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testManyStreams() throws Exception {
+        service = new ShardedParserService(4, factory);
+        service.setErrorHandler(failureHandler);
+
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        for (long stream = producer * 25; stream < (producer + 1) * 25; stream++) {
+                            byte[] frame = ("+" + stream + ";").getBytes();
+                            //split the frame to exercise the parser state kept between submits
+                            service.submit(stream, frame, 0, 2);
+                            service.submit(stream, frame, 2, frame.length - 2);
+                        }
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(service.awaitProcessed(10, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals(100 * 100, matched.get());
+        assertEquals(100, threads.size());
+    }
+
+    @Test
+    public void testErrorHandler() throws Exception {
+        service = new ShardedParserService(2, factory);
+        service.setErrorHandler(new ShardedParserService.ErrorHandler() {
+            public void onError(long streamId, Throwable exception) {
+                if (streamId == 7 && exception instanceof IllegalStateException) {
+                    errors.incrementAndGet();
+                } else {
+                    failure.compareAndSet(null, exception);
+                }
+            }
+        });
+
+        service.submit(7, "+;+7;".getBytes());
+        service.submit(7, "+7;".getBytes());
+        service.removeStream(7);
+        assertTrue(service.awaitProcessed(10, TimeUnit.SECONDS));
+
+        assertNull(failure.get());
+        assertEquals(1, errors.get());
+        assertEquals(1, matched.get());
+    }
+
+    @Test
+    public void testErrorKeepsShardAlive() throws Exception {
+        service = new ShardedParserService(1, factory);
+        service.setErrorHandler(failureHandler);
+
+        service.submit(7, "+x;".getBytes());
+        service.submit(7, "+7;".getBytes());
+        service.submit(8, "+8;".getBytes());
+        assertTrue(service.awaitProcessed(10, TimeUnit.SECONDS));
+
+        assertTrue(failure.get() instanceof StackOverflowError);
+        assertEquals(2, matched.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSubmitAfterClose() {
+        service = new ShardedParserService(1, factory);
+        service.close();
+        service.submit(1, new byte[1]);
+    }
+
+    @Test
+    public void testRemoveStreams() throws Exception {
+        service = new ShardedParserService(1, factory);
+        service.setErrorHandler(failureHandler);
+
+        for (long stream = 0; stream < 200; stream++) {
+            service.submit(stream, "+".getBytes());
+        }
+        //A removed stream loses its partial frame, the others must still be found
+        for (long stream = 1; stream < 200; stream += 2) {
+            service.removeStream(stream);
+        }
+        for (long stream = 0; stream < 200; stream++) {
+            service.submit(stream, (stream + ";").getBytes());
+        }
+        assertTrue(service.awaitProcessed(10, TimeUnit.SECONDS));
+
+        assertNull(failure.get());
+        assertEquals(100, matched.get());
+    }
+
+    @Test
+    public void testSubmitWhileClosing() throws Exception {
+        for (int run = 0; run < 500; run++) {
+            final ShardedParserService closing = new ShardedParserService(2, factory);
+            closing.setErrorHandler(failureHandler);
+            final AtomicInteger accepted = new AtomicInteger();
+            matched.set(0);
+
+            Thread[] producers = new Thread[2];
+            for (int p = 0; p < producers.length; p++) {
+                final long stream = run * producers.length + p;
+                producers[p] = new Thread(new Runnable() {
+                    public void run() {
+                        byte[] frame = ("+" + stream + ";").getBytes();
+                        try {
+                            while (true) {
+                                closing.submit(stream, frame);
+                                accepted.incrementAndGet();
+                                //A barrier must be executed or refused, never left waiting
+                                if (!closing.awaitProcessed(10, TimeUnit.SECONDS)) {
+                                    failure.compareAndSet(null, new AssertionError("barrier timed out"));
+                                }
+                            }
+                        } catch (IllegalStateException e) {
+                            //closed
+                        } catch (InterruptedException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                producers[p].start();
+            }
+            Thread.sleep(1);
+            closing.close();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            assertNull(failure.get());
+            //Every accepted submit is processed
+            assertEquals(accepted.get(), matched.get());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package hu.bugadani.serial;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class StreamRecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int called = 0;
+
+    private SerialParser createParser(StreamRecorder recorder) {
+        return new SerialParser
+                .Builder()
+                .setBufferSize(10)
+                .setRecorder(recorder)
+                .addFrameDefinition(
+                        new SerialParser.FrameDefinition(1, "+")
+                                .setTerminatingByte((byte) ';')
+                                .addListener(new SerialParser.FrameMatchListener() {
+                                    public void onFrameMatched(SerialParser.FrameDefinition frame, byte[] data) {
+                                        assertArrayEquals("123".getBytes(), data);
+                                        called++;
+                                    }
+                                })
+                )
+                .build();
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        File file = folder.newFile();
+
+        StreamRecorder recorder = new StreamRecorder(file, 32);
+        SerialParser parser = createParser(recorder);
+        for (int i = 0; i < 100; i++) {
+            parser.add("xx+1".getBytes());
+            parser.add((byte) '2');
+            parser.add("3;".getBytes());
+        }
+        recorder.close();
+        assertEquals(100, called);
+
+        StreamReplayer replayer = new StreamReplayer(file);
+        long replayed = replayer.replay(createParser(null), false);
+        replayer.close();
+
+        assertEquals(200, called);
+        assertEquals(700, replayed);
+    }
+
+    @Test
+    public void testChunksAndTimestamps() throws Exception {
+        File file = folder.newFile();
+
+        StreamRecorder recorder = new StreamRecorder(file);
+        recorder.record("first".getBytes());
+        recorder.flush();
+        recorder.record(new byte[100000]);
+        recorder.record("abcdef".getBytes(), 1, 3);
+        recorder.close();
+
+        StreamReplayer replayer = new StreamReplayer(file);
+        assertTrue(replayer.nextChunk());
+        assertArrayEquals("first".getBytes(), replayer.getChunk());
+        long timestamp = replayer.getChunkTimestamp();
+
+        assertTrue(replayer.nextChunk());
+        assertEquals(100000, replayer.getChunk().length);
+        assertTrue(replayer.getChunkTimestamp() >= timestamp);
+
+        assertTrue(replayer.nextChunk());
+        assertArrayEquals("bcd".getBytes(), replayer.getChunk());
+        assertFalse(replayer.nextChunk());
+        replayer.close();
+    }
+
+    @Test
+    public void testSingleBytesShareChunks() throws Exception {
+        File file = folder.newFile();
+
+        StringBuilder expected = new StringBuilder("ab");
+        StreamRecorder recorder = new StreamRecorder(file, 64);
+        recorder.record("ab".getBytes());
+        for (int i = 0; i < 1000; i++) {
+            recorder.record((byte) ('0' + i % 10));
+            expected.append((char) ('0' + i % 10));
+        }
+        recorder.close();
+
+        StreamReplayer replayer = new StreamReplayer(file);
+        StringBuilder replayed = new StringBuilder();
+        int chunks = 0;
+        while (replayer.nextChunk()) {
+            replayed.append(new String(replayer.getChunk()));
+            chunks++;
+        }
+        replayer.close();
+
+        assertEquals(expected.toString(), replayed.toString());
+        //One chunk per block, unless the recording thread was paused longer than the window
+        assertTrue(chunks < 100);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws Exception {
+        File file = folder.newFile();
+        new StreamReplayer(file);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRecordAfterClose() throws Exception {
+        StreamRecorder recorder = new StreamRecorder(folder.newFile());
+        recorder.close();
+        recorder.record((byte) 0);
+    }
+}
@@ -0,0 +1,109 @@
+package hu.bugadani.serial;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    static class ManualClock implements Clock {
+        long time = 0;
+
+        public long nanoTime() {
+            return time;
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            time += unit.toNanos(duration);
+        }
+    }
+
+    private ManualClock clock;
+    private TimerWheel wheel;
+    private final List<String> fired = new ArrayList<String>();
+
+    private TimerWheel.Task task(final String name) {
+        return new TimerWheel.Task() {
+            public void run(TimerWheel.Timeout timeout) {
+                fired.add(name);
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+        wheel = new TimerWheel(clock, 1, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @Test
+    public void testExpiresAfterDeadline() {
+        wheel.schedule(task("a"), 5, TimeUnit.MILLISECONDS);
+        wheel.schedule(task("b"), 3, TimeUnit.MILLISECONDS);
+
+        clock.advance(2, TimeUnit.MILLISECONDS);
+        assertEquals(0, wheel.advance());
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals(1, wheel.advance());
+        assertEquals(1, wheel.getPendingCount());
+
+        clock.advance(10, TimeUnit.MILLISECONDS);
+        assertEquals(1, wheel.advance());
+        assertEquals(0, wheel.getPendingCount());
+
+        assertEquals(2, fired.size());
+        assertEquals("b", fired.get(0));
+        assertEquals("a", fired.get(1));
+    }
+
+    @Test
+    public void testMultipleRounds() {
+        wheel.schedule(task("a"), 20, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 19; i++) {
+            clock.advance(1, TimeUnit.MILLISECONDS);
+            wheel.advance();
+        }
+        assertTrue(fired.isEmpty());
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void testCancel() {
+        TimerWheel.Timeout timeout = wheel.schedule(task("a"), 1, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.isPending());
+        timeout.cancel();
+        assertFalse(timeout.isPending());
+
+        clock.advance(5, TimeUnit.MILLISECONDS);
+        assertEquals(0, wheel.advance());
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void testRescheduleFromTask() {
+        wheel.schedule(new TimerWheel.Task() {
+            public void run(TimerWheel.Timeout timeout) {
+                fired.add("first");
+                wheel.schedule(task("second"), 0, TimeUnit.MILLISECONDS);
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertEquals(1, fired.size());
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        assertEquals(2, fired.size());
+    }
+}
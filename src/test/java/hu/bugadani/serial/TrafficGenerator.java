@@ -0,0 +1,370 @@
+package hu.bugadani.serial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic byte stream from frame definitions, e.g. for load and soak tests.
+ * <p>
+ * The stream consists of frames picked by weight, with runs of noise bytes between them. Corrupted frames have
+ * their header replaced by noise, so they are not expected to match. The stream is read in fragments of random
+ * size, like reads from a serial port. The frames that should be matched are kept in a queue in stream order,
+ * identified by frame id and the hash() of their data.
+ * <p>
+ * Noise and generated data bytes are never the first byte of a header or terminator, so the expected frames are
+ * exact as long as the grammar is unambiguous, i.e. no header or terminator contains the first byte of another
+ * header after its first position.
+ * <p>
+ * Nothing is allocated once the internal buffers have grown to the largest frame and the longest queue.
+ */
+public class TrafficGenerator {
+
+    private static final class Entry {
+        final SerialParser.FrameDefinition frameDefinition;
+        final byte[] header;
+        final byte[] terminator;
+        final int dataLength;
+        final int weight;
+
+        Entry(SerialParser.FrameDefinition frameDefinition, int weight) {
+            this.frameDefinition = frameDefinition;
+            this.header = frameDefinition.getHeader();
+            this.terminator = frameDefinition.getTerminator();
+            this.dataLength = frameDefinition.getDataLength();
+            this.weight = weight;
+        }
+    }
+
+    private final Random mRandom;
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private int mTotalWeight = 0;
+    private byte[] mSafeBytes = null;
+
+    private int mMaxDataLength = 64;
+    private double mNoiseRatio = 0;
+    private int mMaxNoiseLength = 16;
+    private double mCorruptionRate = 0;
+    private int mMinFragment = 1;
+    private int mMaxFragment = 256;
+
+    private byte[] mPending = new byte[256];
+    private int mPendingStart = 0;
+    private int mPendingEnd = 0;
+
+    private int[] mExpectedIds = new int[64];
+    private long[] mExpectedHashes = new long[64];
+    private int mExpectedHead = 0;
+    private int mExpectedCount = 0;
+
+    private long mFrameCount = 0;
+    private long mCorruptedCount = 0;
+    private long mNoiseCount = 0;
+    private long mByteCount = 0;
+
+    /**
+     * @param seed The seed of the random generator. The same seed and settings generate the same stream.
+     */
+    public TrafficGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @param frameDefinition The frame definition to generate
+     * @param weight          The relative frequency of the frame
+     * @return Fluent interface
+     */
+    public TrafficGenerator addFrameDefinition(SerialParser.FrameDefinition frameDefinition, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be > 0");
+        }
+        mEntries.add(new Entry(frameDefinition, weight));
+        mTotalWeight += weight;
+        mSafeBytes = null;
+        return this;
+    }
+
+    /**
+     * @param maxDataLength The maximum data length of variable length frames
+     * @return Fluent interface
+     */
+    public TrafficGenerator setMaxDataLength(int maxDataLength) {
+        if (maxDataLength < 0) {
+            throw new IllegalArgumentException("Max data length must be >= 0");
+        }
+        mMaxDataLength = maxDataLength;
+
+        return this;
+    }
+
+    /**
+     * @param noiseRatio    The probability of a run of noise bytes before a frame
+     * @param maxNoiseLength The maximum length of a run of noise bytes
+     * @return Fluent interface
+     */
+    public TrafficGenerator setNoise(double noiseRatio, int maxNoiseLength) {
+        if (noiseRatio < 0 || noiseRatio > 1 || maxNoiseLength <= 0) {
+            throw new IllegalArgumentException("Invalid noise settings");
+        }
+        mNoiseRatio = noiseRatio;
+        mMaxNoiseLength = maxNoiseLength;
+
+        return this;
+    }
+
+    /**
+     * @param corruptionRate The probability that a frame is corrupted
+     * @return Fluent interface
+     */
+    public TrafficGenerator setCorruptionRate(double corruptionRate) {
+        if (corruptionRate < 0 || corruptionRate > 1) {
+            throw new IllegalArgumentException("Corruption rate must be between 0 and 1");
+        }
+        mCorruptionRate = corruptionRate;
+
+        return this;
+    }
+
+    /**
+     * @param minFragment The minimum number of bytes returned by a read
+     * @param maxFragment The maximum number of bytes returned by a read
+     * @return Fluent interface
+     */
+    public TrafficGenerator setFragmentation(int minFragment, int maxFragment) {
+        if (minFragment <= 0 || maxFragment < minFragment) {
+            throw new IllegalArgumentException("Invalid fragment sizes");
+        }
+        mMinFragment = minFragment;
+        mMaxFragment = maxFragment;
+
+        return this;
+    }
+
+    /**
+     * Generate the next fragment of the stream
+     *
+     * @param dest   The destination array
+     * @param offset The position of the first byte in dest
+     * @param length The maximum number of bytes
+     * @return The number of bytes written, which follows the fragmentation settings
+     */
+    public int read(byte[] dest, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > dest.length) {
+            throw new IllegalArgumentException("offset + length > dest.length");
+        }
+        if (mEntries.isEmpty()) {
+            throw new IllegalStateException("No frame definitions");
+        }
+        int fragment = mMinFragment + mRandom.nextInt(mMaxFragment - mMinFragment + 1);
+        int count = Math.min(fragment, length);
+        while (mPendingEnd - mPendingStart < count) {
+            generate();
+        }
+        System.arraycopy(mPending, mPendingStart, dest, offset, count);
+        mPendingStart += count;
+        mByteCount += count;
+        return count;
+    }
+
+    /**
+     * @return The number of expected frames that have not been removed
+     */
+    public int getExpectedCount() {
+        return mExpectedCount;
+    }
+
+    /**
+     * @return The frame id of the next expected frame
+     */
+    public int getExpectedFrameId() {
+        checkExpected();
+        return mExpectedIds[mExpectedHead];
+    }
+
+    /**
+     * @return The hash of the next expected frame's data
+     */
+    public long getExpectedHash() {
+        checkExpected();
+        return mExpectedHashes[mExpectedHead];
+    }
+
+    /**
+     * Remove the next expected frame, e.g. after it was matched
+     */
+    public void removeExpected() {
+        checkExpected();
+        mExpectedHead = (mExpectedHead + 1) % mExpectedIds.length;
+        mExpectedCount--;
+    }
+
+    /**
+     * @return The number of generated frames, including the corrupted ones
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The number of corrupted frames
+     */
+    public long getCorruptedCount() {
+        return mCorruptedCount;
+    }
+
+    /**
+     * @return The number of noise bytes
+     */
+    public long getNoiseCount() {
+        return mNoiseCount;
+    }
+
+    /**
+     * @return The number of bytes returned by read
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of frame data
+     *
+     * @param data The data
+     * @return The hash
+     */
+    public static long hash(ByteView data) {
+        long hash = 0xcbf29ce484222325L;
+        int size = data.getSize();
+        for (int i = 0; i < size; i++) {
+            hash = (hash ^ (data.peek(i) & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void checkExpected() {
+        if (mExpectedCount == 0) {
+            throw new IllegalStateException("No expected frame");
+        }
+    }
+
+    private byte[] getSafeBytes() {
+        if (mSafeBytes == null) {
+            boolean[] reserved = new boolean[256];
+            for (Entry entry : mEntries) {
+                if (entry.header.length > 0) {
+                    reserved[entry.header[0] & 0xFF] = true;
+                }
+                if (entry.terminator.length > 0) {
+                    reserved[entry.terminator[0] & 0xFF] = true;
+                }
+            }
+            byte[] safe = new byte[256];
+            int count = 0;
+            for (int b = 0; b < 256; b++) {
+                if (!reserved[b]) {
+                    safe[count++] = (byte) b;
+                }
+            }
+            mSafeBytes = Arrays.copyOf(safe, count);
+        }
+        return mSafeBytes;
+    }
+
+    private byte safeByte() {
+        byte[] safe = getSafeBytes();
+        return safe[mRandom.nextInt(safe.length)];
+    }
+
+    private void generate() {
+        if (mNoiseRatio > 0 && mRandom.nextDouble() < mNoiseRatio) {
+            int length = 1 + mRandom.nextInt(mMaxNoiseLength);
+            int start = reserve(length);
+            for (int i = 0; i < length; i++) {
+                mPending[start + i] = safeByte();
+            }
+            mNoiseCount += length;
+        }
+
+        Entry entry = pickEntry();
+        int dataLength = entry.dataLength;
+        if (dataLength == SerialParser.FrameDefinition.VARIABLE_LENGTH) {
+            dataLength = mRandom.nextInt(mMaxDataLength + 1);
+        }
+        int frameLength = entry.header.length + dataLength + entry.terminator.length;
+        int start = reserve(frameLength);
+        byte[] pending = mPending;
+        boolean corrupted = mCorruptionRate > 0 && mRandom.nextDouble() < mCorruptionRate;
+
+        for (int i = 0; i < entry.header.length; i++) {
+            pending[start + i] = corrupted ? safeByte() : entry.header[i];
+        }
+        int dataStart = start + entry.header.length;
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < dataLength; i++) {
+            byte b = safeByte();
+            pending[dataStart + i] = b;
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        System.arraycopy(entry.terminator, 0, pending, dataStart + dataLength, entry.terminator.length);
+
+        mFrameCount++;
+        if (corrupted) {
+            mCorruptedCount++;
+        } else {
+            addExpected(entry.frameDefinition.getFrameId(), hash);
+        }
+    }
+
+    private Entry pickEntry() {
+        int pick = mRandom.nextInt(mTotalWeight);
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            pick -= entry.weight;
+            if (pick < 0) {
+                return entry;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return The position of length bytes at the end of the pending bytes
+     */
+    private int reserve(int length) {
+        int size = mPendingEnd - mPendingStart;
+        if (mPendingEnd + length > mPending.length) {
+            if (size + length > mPending.length) {
+                int capacity = Math.max(size + length, mPending.length * 2);
+                mPending = Arrays.copyOfRange(mPending, mPendingStart, mPendingStart + capacity);
+            } else {
+                System.arraycopy(mPending, mPendingStart, mPending, 0, size);
+            }
+            mPendingStart = 0;
+            mPendingEnd = size;
+        }
+        int start = mPendingEnd;
+        mPendingEnd += length;
+        return start;
+    }
+
+    private void addExpected(int frameId, long hash) {
+        if (mExpectedCount == mExpectedIds.length) {
+            int capacity = mExpectedCount * 2;
+            int[] ids = new int[capacity];
+            long[] hashes = new long[capacity];
+            for (int i = 0; i < mExpectedCount; i++) {
+                int index = (mExpectedHead + i) % mExpectedIds.length;
+                ids[i] = mExpectedIds[index];
+                hashes[i] = mExpectedHashes[index];
+            }
+            mExpectedIds = ids;
+            mExpectedHashes = hashes;
+            mExpectedHead = 0;
+        }
+        int tail = (mExpectedHead + mExpectedCount) % mExpectedIds.length;
+        mExpectedIds[tail] = frameId;
+        mExpectedHashes[tail] = hash;
+        mExpectedCount++;
+    }
+}
@@ -0,0 +1,77 @@
+package hu.bugadani.serial;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TrafficGeneratorTest {
+
+    private static TrafficGenerator createGenerator(long seed) {
+        return new TrafficGenerator(seed)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "$").setTerminator("\r\n"), 3)
+                .addFrameDefinition(new SerialParser.FrameDefinition(2, "#").setDataLength(4), 1)
+                .setMaxDataLength(8)
+                .setNoise(0.5, 4)
+                .setCorruptionRate(0.1)
+                .setFragmentation(3, 7);
+    }
+
+    @Test
+    public void testDeterministic() throws Exception {
+        byte[] first = new byte[1000];
+        byte[] second = new byte[1000];
+        TrafficGenerator a = createGenerator(42);
+        TrafficGenerator b = createGenerator(42);
+        for (int offset = 0; offset < first.length - 7; ) {
+            int length = a.read(first, offset, 7);
+            assertEquals(length, b.read(second, offset, 7));
+            assertTrue(length >= 3 && length <= 7);
+            offset += length;
+        }
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void testExpectedFrames() throws Exception {
+        final TrafficGenerator generator = createGenerator(1);
+        final int[] matched = new int[1];
+        SerialParser.FrameViewListener checker = new SerialParser.FrameViewListener() {
+            public void onFrameMatched(FrameView frame) {
+                assertEquals(generator.getExpectedFrameId(), frame.getFrameId());
+                assertEquals(generator.getExpectedHash(), TrafficGenerator.hash(frame));
+                generator.removeExpected();
+                matched[0]++;
+            }
+        };
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(16)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "$").setTerminator("\r\n").addViewListener(checker))
+                .addFrameDefinition(new SerialParser.FrameDefinition(2, "#").setDataLength(4).addViewListener(checker))
+                .build();
+
+        byte[] chunk = new byte[16];
+        while (generator.getFrameCount() < 1000) {
+            parser.add(chunk, 0, generator.read(chunk, 0, chunk.length));
+        }
+        assertTrue(generator.getCorruptedCount() > 0);
+        assertTrue(generator.getNoiseCount() > 0);
+        assertEquals(generator.getFrameCount() - generator.getCorruptedCount() - generator.getExpectedCount(), matched[0]);
+    }
+
+    @Test
+    public void testNoiseAvoidsFramingBytes() throws Exception {
+        TrafficGenerator generator = new TrafficGenerator(7)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "$").setTerminatingByte((byte) ';'), 1)
+                .setNoise(1, 16)
+                .setCorruptionRate(1);
+        byte[] bytes = new byte[4096];
+        generator.read(bytes, 0, 256);
+        for (byte b : Arrays.copyOf(bytes, 256)) {
+            assertTrue(b != '$');
+        }
+        assertEquals(0, generator.getExpectedCount());
+    }
+}
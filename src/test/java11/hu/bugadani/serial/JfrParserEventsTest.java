@@ -0,0 +1,55 @@
+package hu.bugadani.serial;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JfrParserEventsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordedEvents() throws Exception {
+        assertEquals("hu.bugadani.serial.JfrParserEvents", ParserEvents.INSTANCE.getClass().getName());
+
+        SerialParser parser = new SerialParser
+                .Builder()
+                .setBufferSize(4)
+                .addFrameDefinition(new SerialParser.FrameDefinition(1, "+").setTerminatingByte((byte) ';'))
+                .build();
+
+        File file = folder.newFile();
+        try (Recording recording = new Recording()) {
+            recording.enable("hu.bugadani.serial.FrameMatched");
+            recording.enable("hu.bugadani.serial.Resync");
+            recording.enable("hu.bugadani.serial.BufferFull");
+            recording.start();
+            assertTrue(ParserEvents.INSTANCE.isEnabled());
+
+            parser.add("xy+ab;".getBytes());
+            parser.add("+abcd;".getBytes());
+
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+        assertFalse(ParserEvents.INSTANCE.isEnabled());
+
+        Map<String, RecordedEvent> events = new HashMap<String, RecordedEvent>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+            events.put(event.getEventType().getName(), event);
+        }
+        assertEquals(2, events.get("hu.bugadani.serial.FrameMatched").getInt("length"));
+        assertEquals(2, events.get("hu.bugadani.serial.Resync").getLong("droppedBytes"));
+        assertEquals(4, events.get("hu.bugadani.serial.BufferFull").getInt("capacity"));
+    }
+}